@@ -0,0 +1,242 @@
+package to.crp.android.oktimeset;
+
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cleans up the USB attach and detach events of devices before they are acted on.
+ * <p>
+ * An attach is passed on once the device has stayed attached for {@link #SETTLE_MS}, so a
+ * connector bouncing in a hub port, attach then detach in quick succession, is dropped as a
+ * pair without the device ever being opened. An attach repeated within {@link #DEDUPE_MS} of the
+ * one passed on, with no detach in between, is a redelivery and is dropped. A detach is passed on
+ * only for a device whose attach was.
+ * <p>
+ * Events may be reported from any thread. They are handled, and passed on, on the given
+ * single-threaded executor, which confines all state.
+ *
+ * @param <D> The device type.
+ */
+final class AttachFilter<D> {
+
+    /**
+     * Where cleaned up events go.
+     *
+     * @param <D> The device type.
+     */
+    interface Sink<D> {
+
+        /**
+         * @param device        A device that has settled.
+         * @param reportedNanos When the attach passed on was reported, by
+         *                      {@link System#nanoTime()}.
+         */
+        void attached(D device, long reportedNanos);
+
+        /**
+         * @param device A device that was passed on as attached.
+         */
+        void detached(D device);
+
+        /**
+         * @param device A device whose attach was dropped, as a repeat or with its detach.
+         */
+        void dropped(D device);
+    }
+
+    /**
+     * How long a device must stay attached before its attach is passed on, in milliseconds.
+     */
+    static final long SETTLE_MS = 100;
+
+    /**
+     * How long repeats of an attach passed on are dropped, in milliseconds.
+     */
+    static final long DEDUPE_MS = 5000;
+
+    private final Sink<D> sink;
+    private final ScheduledExecutorService executor;
+    private final long settleMs;
+
+    /**
+     * Devices by id. Confined to the executor.
+     */
+    private final Map<Integer, Device> devices = new HashMap<>();
+
+    /**
+     * Attaches reported and not yet passed on or dropped.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private int duplicates = 0;
+    private int coalesced = 0;
+
+    /**
+     * Create a filter settling attaches for {@link #SETTLE_MS}.
+     *
+     * @param sink     Where cleaned up events go.
+     * @param executor A single-threaded executor to handle events on.
+     */
+    AttachFilter(final Sink<D> sink, final ScheduledExecutorService executor) {
+        this(sink, executor, SETTLE_MS);
+    }
+
+    /**
+     * Create a filter.
+     *
+     * @param sink     Where cleaned up events go.
+     * @param executor A single-threaded executor to handle events on.
+     * @param settleMs How long a device must stay attached, in milliseconds.
+     */
+    AttachFilter(final Sink<D> sink, final ScheduledExecutorService executor,
+                 final long settleMs) {
+        this.sink = sink;
+        this.executor = executor;
+        this.settleMs = settleMs;
+    }
+
+    /**
+     * Report a device attached, now.
+     *
+     * @param id     The device id.
+     * @param device The device.
+     */
+    void attach(final int id, final D device) {
+        attach(id, device, System.nanoTime());
+    }
+
+    /**
+     * Report a device attached.
+     *
+     * @param id            The device id.
+     * @param device        The device.
+     * @param reportedNanos When the attach was first heard of, by {@link System#nanoTime()}.
+     */
+    void attach(final int id, final D device, final long reportedNanos) {
+        pending.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                onAttach(id, device, reportedNanos);
+            }
+        });
+    }
+
+    /**
+     * Report a device detached.
+     *
+     * @param id     The device id.
+     * @param device The device.
+     */
+    void detach(final int id, final D device) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                onDetach(id, device);
+            }
+        });
+    }
+
+    /**
+     * @return The number of attaches reported and not yet passed on or dropped. Counts an attach
+     * passed on only once the sink has taken it. May be read from any thread.
+     */
+    int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return The number of attaches dropped as repeats. Read on the executor.
+     */
+    int getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return The number of attach and detach pairs dropped. Read on the executor.
+     */
+    int getCoalesced() {
+        return coalesced;
+    }
+
+    private void onAttach(final int id, final D device, final long reportedNanos) {
+        final long now = System.nanoTime();
+        final Device known = devices.get(id);
+        if (known != null && (known.settling != null
+                || now - known.passedNanos < TimeUnit.MILLISECONDS.toNanos(DEDUPE_MS))) {
+            duplicates++;
+            drop(device);
+            return;
+        }
+
+        final Device d = new Device(device, reportedNanos);
+        devices.put(id, d);
+        d.settling = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (devices.get(id) != d) {
+                    return;
+                }
+                d.settling = null;
+                d.passedNanos = System.nanoTime();
+                sink.attached(d.device, d.reportedNanos);
+                pending.decrementAndGet();
+            }
+        }, settleMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void onDetach(final int id, final D device) {
+        final Device d = devices.remove(id);
+        if (d == null) {
+            return;
+        }
+        if (d.settling != null) {
+            d.settling.cancel(false);
+            coalesced++;
+            drop(d.device);
+        } else {
+            sink.detached(device);
+        }
+    }
+
+    private void drop(final D device) {
+        pending.decrementAndGet();
+        sink.dropped(device);
+    }
+
+    /**
+     * A device seen attached.
+     */
+    private final class Device {
+
+        private final D device;
+
+        /**
+         * When the attach was reported.
+         */
+        private final long reportedNanos;
+
+        /**
+         * The pending pass on of the attach, or null once it is done.
+         */
+        private
+        @Nullable
+        ScheduledFuture<?> settling = null;
+
+        /**
+         * When the attach was passed on.
+         */
+        private long passedNanos = 0;
+
+        private Device(final D device, final long reportedNanos) {
+            this.device = device;
+            this.reportedNanos = reportedNanos;
+        }
+    }
+}
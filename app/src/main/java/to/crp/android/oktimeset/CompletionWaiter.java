@@ -0,0 +1,209 @@
+package to.crp.android.oktimeset;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One thread waiting on the completions of many connections at once, for transports that can
+ * only be waited on by blocking. {@link UsbHidTransport} has the file descriptors of all its
+ * connections polled together, so one thread serves every attached key.
+ * <p>
+ * The thread is started when the first source is added and ends once the last is removed. A
+ * removed source is released on the waiter thread, after the poll it may be in has returned, so
+ * nothing is closed while it is being polled.
+ *
+ * @param <S> The source type.
+ */
+final class CompletionWaiter<S extends CompletionWaiter.Source> {
+
+    /**
+     * A connection the waiter watches.
+     */
+    interface Source {
+
+        /**
+         * Take a completed request the poll found waiting, or the error it found, and hand it
+         * over. Called on the waiter thread only.
+         *
+         * @return Whether to keep watching the source; false once its connection has failed or
+         * closed.
+         */
+        boolean reap();
+
+        /**
+         * Tell the source that the waiter cannot watch it any more.
+         *
+         * @param ioe Why.
+         */
+        void fail(IOException ioe);
+
+        /**
+         * Let go of what is held for polling the source, once it is no longer polled.
+         */
+        void release();
+    }
+
+    /**
+     * Waits for any of a set of sources.
+     *
+     * @param <S> The source type.
+     */
+    interface Poller<S> {
+
+        /**
+         * Block until any of the sources has a completion or an error waiting, or
+         * {@link #wake()} is called. The same list is passed until the sources change.
+         *
+         * @param sources The sources.
+         * @param ready   Set for each source to reap; as many as there are sources, all false.
+         * @throws IOException Thrown if the poll itself failed.
+         */
+        void poll(List<S> sources, boolean[] ready) throws IOException;
+
+        /**
+         * Have the poll in progress, or else the next one, return. From any thread.
+         */
+        void wake();
+    }
+
+    private final Poller<S> poller;
+    private final String name;
+    private final long stackBytes;
+
+    /**
+     * The sources watched. Guarded by itself, as are the fields below.
+     */
+    private final List<S> sources = new ArrayList<>();
+
+    /**
+     * Sources removed and not yet released.
+     */
+    private final List<S> retired = new ArrayList<>();
+
+    /**
+     * Whether {@link #sources} changed since the waiter thread last took a copy.
+     */
+    private boolean changed = false;
+
+    private
+    @Nullable
+    Thread thread = null;
+
+    private final Runnable loop = new Runnable() {
+        @Override
+        public void run() {
+            loop();
+        }
+    };
+
+    /**
+     * Create a waiter. No thread is started until a source is added.
+     *
+     * @param poller     Waits for the sources.
+     * @param name       The name of the waiter thread.
+     * @param stackBytes The stack size of the waiter thread, which only ever blocks polling.
+     */
+    CompletionWaiter(final Poller<S> poller, final String name, final long stackBytes) {
+        this.poller = poller;
+        this.name = name;
+        this.stackBytes = stackBytes;
+    }
+
+    /**
+     * Start watching a source.
+     *
+     * @param source The source.
+     */
+    void add(final S source) {
+        synchronized (sources) {
+            sources.add(source);
+            changed = true;
+            if (thread == null) {
+                thread = new Thread(null, loop, name, stackBytes);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        poller.wake();
+    }
+
+    /**
+     * Stop watching a source. It is released on the waiter thread.
+     *
+     * @param source The source.
+     */
+    void remove(final S source) {
+        if (retire(source)) {
+            poller.wake();
+        }
+    }
+
+    /**
+     * @return The waiter thread, or null if none is running.
+     */
+    @Nullable
+    Thread getThread() {
+        synchronized (sources) {
+            return thread;
+        }
+    }
+
+    /**
+     * @param source A source.
+     * @return Whether it was being watched.
+     */
+    private boolean retire(final S source) {
+        synchronized (sources) {
+            if (!sources.remove(source)) {
+                return false;
+            }
+            retired.add(source);
+            changed = true;
+            return true;
+        }
+    }
+
+    private void loop() {
+        List<S> polled = new ArrayList<>();
+        boolean[] ready = new boolean[0];
+        while (true) {
+            synchronized (sources) {
+                for (final S s : retired) {
+                    s.release();
+                }
+                retired.clear();
+                if (sources.isEmpty()) {
+                    thread = null;
+                    return;
+                }
+                if (changed) {
+                    changed = false;
+                    polled = new ArrayList<>(sources);
+                    ready = new boolean[polled.size()];
+                }
+            }
+
+            try {
+                poller.poll(polled, ready);
+            } catch (IOException ioe) {
+                for (final S s : polled) {
+                    retire(s);
+                    s.fail(ioe);
+                }
+                continue;
+            }
+            for (int i = 0; i < ready.length; i++) {
+                if (ready[i]) {
+                    ready[i] = false;
+                    final S s = polled.get(i);
+                    if (!s.reap()) {
+                        retire(s);
+                    }
+                }
+            }
+        }
+    }
+}
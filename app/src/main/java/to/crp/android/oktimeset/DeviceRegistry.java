@@ -0,0 +1,218 @@
+package to.crp.android.oktimeset;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free registry of attached devices by {@code UsbDevice.getDeviceId()}.
+ * <p>
+ * An open addressed table of int ids with linear probing. A device id claims its slot the first
+ * time it is seen and keeps it, so an id always probes to the same slot and there are no
+ * tombstones; this relies on there being few distinct ids, which holds for USB, where the id is
+ * derived from the bus number and the device address. Once every slot is claimed, new ids are
+ * turned away, see {@link #putIfAbsent(Entry)}. The entry in the slot is swapped with
+ * compare-and-set, and each entry moves through {@link #OPENING}, {@link #ACTIVE} and
+ * {@link #CLOSING} on its own, so no operation takes a lock.
+ *
+ * @param <E> The entry type.
+ */
+final class DeviceRegistry<E extends DeviceRegistry.Entry> {
+
+    /**
+     * The device is being set up.
+     */
+    static final int OPENING = 0;
+
+    /**
+     * The device is in use.
+     */
+    static final int ACTIVE = 1;
+
+    /**
+     * The device is being torn down. A new entry for the id may replace it.
+     */
+    static final int CLOSING = 2;
+
+    private static final int NO_ID = Integer.MIN_VALUE;
+
+    private final int mask;
+    private final AtomicIntegerArray ids;
+    private final AtomicReferenceArray<E> entries;
+
+    /**
+     * Create a registry.
+     *
+     * @param capacity The number of distinct device ids the registry can hold, rounded up to a
+     *                 power of two.
+     */
+    DeviceRegistry(final int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Bad registry capacity " + capacity + "!");
+        }
+        final int slots = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mask = slots - 1;
+        ids = new AtomicIntegerArray(slots);
+        for (int i = 0; i < slots; i++) {
+            ids.set(i, NO_ID);
+        }
+        entries = new AtomicReferenceArray<>(slots);
+    }
+
+    /**
+     * Spread the low bits of device ids, which are mostly the USB address.
+     */
+    private static int hash(final int id) {
+        final int h = id * 0x9E3779B9;
+        return h ^ h >>> 16;
+    }
+
+    /**
+     * Find the slot of an id.
+     *
+     * @param id    The device id.
+     * @param claim Whether to claim a slot for the id if it has none.
+     * @return The slot, or -1 if the id has none and none was claimed, for want of room if
+     * claiming.
+     */
+    private int slot(final int id, final boolean claim) {
+        if (id == NO_ID) {
+            throw new IllegalArgumentException("Bad device id " + id + "!");
+        }
+        int i = hash(id) & mask;
+        for (int n = 0; n <= mask; n++, i = i + 1 & mask) {
+            final int at = ids.get(i);
+            if (at == id) {
+                return i;
+            }
+            if (at == NO_ID) {
+                if (!claim) {
+                    return -1;
+                }
+                if (ids.compareAndSet(i, NO_ID, id) || ids.get(i) == id) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param id The device id.
+     * @return The entry of the device in any state, or null if it has none.
+     */
+    @Nullable
+    E get(final int id) {
+        final int i = slot(id, false);
+        return i < 0 ? null : entries.get(i);
+    }
+
+    /**
+     * Register an entry, unless its device has an entry that is not {@link #CLOSING}.
+     *
+     * @param entry The entry, {@link #OPENING}.
+     * @return The entry of the device: the one given if it was registered, else the one there,
+     * or null if the device is new and every slot has been claimed by other ids.
+     */
+    @Nullable
+    E putIfAbsent(final E entry) {
+        final int i = slot(entry.getId(), true);
+        if (i < 0) {
+            return null;
+        }
+        while (true) {
+            final E at = entries.get(i);
+            if (at != null && at.getState() != CLOSING) {
+                return at;
+            }
+            if (entries.compareAndSet(i, at, entry)) {
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * Drop an entry, if it is still the one registered for its device.
+     *
+     * @param entry The entry.
+     * @return Whether the entry was dropped.
+     */
+    boolean remove(final E entry) {
+        final int i = slot(entry.getId(), false);
+        return i >= 0 && entries.compareAndSet(i, entry, null);
+    }
+
+    /**
+     * @return The registered entries in any state, as of some point during the call.
+     */
+    List<E> values() {
+        final List<E> values = new ArrayList<>();
+        for (int i = 0; i <= mask; i++) {
+            final E e = entries.get(i);
+            if (e != null) {
+                values.add(e);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * A device in the registry, with its lifecycle state.
+     */
+    abstract static class Entry {
+
+        private final int id;
+        private final AtomicInteger state = new AtomicInteger(OPENING);
+
+        /**
+         * @param id The device id.
+         */
+        Entry(final int id) {
+            this.id = id;
+        }
+
+        /**
+         * @return The device id.
+         */
+        final int getId() {
+            return id;
+        }
+
+        /**
+         * @return {@link #OPENING}, {@link #ACTIVE} or {@link #CLOSING}.
+         */
+        final int getState() {
+            return state.get();
+        }
+
+        /**
+         * Move from {@link #OPENING} to {@link #ACTIVE}.
+         *
+         * @return Whether this call made the move.
+         */
+        final boolean activate() {
+            return state.compareAndSet(OPENING, ACTIVE);
+        }
+
+        /**
+         * Move to {@link #CLOSING}, from either other state.
+         *
+         * @return Whether this call made the move; false if the entry was already closing.
+         */
+        final boolean close() {
+            while (true) {
+                final int s = state.get();
+                if (s == CLOSING) {
+                    return false;
+                }
+                if (state.compareAndSet(s, CLOSING)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package to.crp.android.oktimeset;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link HidTransport} backed by an OnlyKey emulated in memory, to exercise and load-test the
+ * protocol code without a device.
+ * <p>
+ * It behaves like the firmware as far as this app is concerned. While an IN request is queued it
+ * sends a status report every report interval: UNINITIALIZED until the key is set up, INITIALIZED
+ * while it is locked and UNLOCKED once unlocked. It accepts the set time message and records the
+ * time it carries. OUT transfers complete at once.
+ * <p>
+ * With a completion signal set, the next report is signalled when it is due, from one timer thread
+ * shared by all emulated keys.
+ */
+class EmulatedOnlyKey implements HidTransport {
+
+    /**
+     * Size of the emulated HID reports.
+     */
+    static final int PACKET_SIZE = 64;
+
+    private final long intervalNanos;
+
+    /**
+     * Guards all state below.
+     */
+    private final Object lock = new Object();
+
+    private final ArrayDeque<EmulatedRequest> queuedIn = new ArrayDeque<>();
+    private final ArrayDeque<EmulatedRequest> completed = new ArrayDeque<>();
+
+    private final byte[] reportUninitialized = report("UNINITIALIZED");
+    private final byte[] reportLocked = report("INITIALIZED");
+    private final byte[] reportUnlocked = report("UNLOCKED");
+
+    /**
+     * Last message received on the OUT endpoint.
+     */
+    private final byte[] received = new byte[PACKET_SIZE];
+
+    private long nextReport = System.nanoTime();
+
+    private boolean initialized = true;
+    private boolean locked = true;
+    private boolean closed = false;
+
+    private long reportCount = 0;
+    private long timeSetCount = 0;
+    private int lastTimeSet = 0;
+    private long lastTimeSetNanos = 0;
+
+    private
+    @Nullable
+    Runnable signal = null;
+
+    /**
+     * Whether the {@link ReportTimer} is to signal the next report, at {@link #dueAt}.
+     */
+    private boolean armed = false;
+    private long dueAt = 0;
+
+    /**
+     * Create an emulated OnlyKey that is set up and locked.
+     *
+     * @param reportIntervalNanos Time between status reports, 0 to report as fast as requested.
+     */
+    EmulatedOnlyKey(final long reportIntervalNanos) {
+        this.intervalNanos = reportIntervalNanos;
+    }
+
+    private static byte[] report(final String status) {
+        final byte[] report = new byte[PACKET_SIZE];
+        final byte[] text = (status + "v0.2-beta.6").getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(text, 0, report, 0, text.length);
+        return report;
+    }
+
+    /**
+     * @param initialized Whether the emulated key has been set up.
+     */
+    void setInitialized(final boolean initialized) {
+        synchronized (lock) {
+            this.initialized = initialized;
+        }
+    }
+
+    /**
+     * @param locked Whether the emulated key is locked.
+     */
+    void setLocked(final boolean locked) {
+        synchronized (lock) {
+            this.locked = locked;
+        }
+    }
+
+    /**
+     * @return The number of status reports sent.
+     */
+    long getReportCount() {
+        synchronized (lock) {
+            return reportCount;
+        }
+    }
+
+    /**
+     * @return The number of set time messages received.
+     */
+    long getTimeSetCount() {
+        synchronized (lock) {
+            return timeSetCount;
+        }
+    }
+
+    /**
+     * @return The time carried by the last set time message, in seconds since the epoch.
+     */
+    int getLastTimeSet() {
+        synchronized (lock) {
+            return lastTimeSet;
+        }
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the last set time message was received.
+     */
+    long getLastTimeSetNanos() {
+        synchronized (lock) {
+            return lastTimeSetNanos;
+        }
+    }
+
+    /**
+     * @return Whether the transport has been closed.
+     */
+    boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    @Override
+    public int getInPacketSize() {
+        return PACKET_SIZE;
+    }
+
+    @Override
+    public int getOutPacketSize() {
+        return PACKET_SIZE;
+    }
+
+    @Override
+    public Request newRequest(final boolean in) throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("Emulated OnlyKey is closed!");
+            }
+        }
+        return new EmulatedRequest(in);
+    }
+
+    @Override
+    public
+    @Nullable
+    Request await(final long timeoutMs) throws IOException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+        synchronized (lock) {
+            while (true) {
+                if (closed) {
+                    throw new IOException("Emulated OnlyKey is closed!");
+                }
+
+                final EmulatedRequest done = completed.poll();
+                if (done != null) {
+                    done.queued = false;
+                    return done;
+                }
+
+                final long now = System.nanoTime();
+                if (!queuedIn.isEmpty() && now - nextReport >= 0) {
+                    sendReport(queuedIn.poll());
+                    nextReport += intervalNanos;
+                    continue;
+                }
+
+                if (timeoutMs == 0) {
+                    signalNext();
+                    return null;
+                }
+                long wait = queuedIn.isEmpty() ? Long.MAX_VALUE : nextReport - now;
+                if (timeoutMs != WAIT_FOREVER) {
+                    final long left = deadline - now;
+                    if (left <= 0) {
+                        return null;
+                    }
+                    wait = Math.min(wait, left);
+                }
+
+                try {
+                    if (wait == Long.MAX_VALUE) {
+                        lock.wait();
+                    } else {
+                        TimeUnit.NANOSECONDS.timedWait(lock, wait);
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for emulated OnlyKey!");
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setCompletionSignal(@Nullable final Runnable signal) {
+        synchronized (lock) {
+            this.signal = signal;
+            signalNext();
+        }
+        if (signal != null) {
+            ReportTimer.get().add(this);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+            signalNext();
+        }
+        ReportTimer.get().remove(this);
+    }
+
+    /**
+     * Run the completion signal, if set, for what completes next: at once if a request has
+     * completed, a report is due or the key is closed, else once the next report is due. Call
+     * with {@link #lock} held.
+     */
+    private void signalNext() {
+        if (signal == null) {
+            return;
+        }
+        if (closed || !completed.isEmpty()) {
+            signal.run();
+            return;
+        }
+        if (queuedIn.isEmpty() || armed) {
+            return;
+        }
+        if (nextReport - System.nanoTime() <= 0) {
+            signal.run();
+        } else {
+            armed = true;
+            dueAt = nextReport;
+            ReportTimer.get().wake();
+        }
+    }
+
+    /**
+     * If the next report is due, disarm and hand out the signal. Called by the
+     * {@link ReportTimer}.
+     *
+     * @param now   The time now.
+     * @param until When the timer is to wake next, as far as it knows.
+     * @param fire  Where to put the signal if it is to be run.
+     * @return When the timer is to wake next, this key included.
+     */
+    private long checkDue(final long now, final long until, final Runnable[] fire) {
+        synchronized (lock) {
+            if (!armed) {
+                return until;
+            }
+            if (now - dueAt >= 0) {
+                armed = false;
+                fire[0] = signal;
+                return until;
+            }
+            return dueAt - until < 0 ? dueAt : until;
+        }
+    }
+
+    /**
+     * Complete an IN request with the current status report. Call with {@link #lock} held.
+     */
+    private void sendReport(final EmulatedRequest r) {
+        final byte[] report = !initialized ? reportUninitialized
+                : locked ? reportLocked : reportUnlocked;
+        final ByteBuffer buffer = r.buffer;
+        buffer.clear();
+        buffer.put(report, 0, Math.min(r.length, report.length));
+        reportCount++;
+        completed.add(r);
+    }
+
+    /**
+     * Take in an OUT transfer. Call with {@link #lock} held.
+     */
+    private void receive(final EmulatedRequest r) {
+        final int length = Math.min(r.length, received.length);
+        for (int i = 0; i < length; i++) {
+            received[i] = r.buffer.get(i);
+        }
+
+        boolean header = length >= 9;
+        for (int i = 0; header && i < OnlyKey.header.length; i++) {
+            header = received[i] == OnlyKey.header[i];
+        }
+        if (header && received[4] == OnlyKey.MSG_SET_TIME) {
+            lastTimeSet = (received[5] & 0xFF) << 24 | (received[6] & 0xFF) << 16
+                    | (received[7] & 0xFF) << 8 | (received[8] & 0xFF);
+            lastTimeSetNanos = System.nanoTime();
+            timeSetCount++;
+        }
+        completed.add(r);
+    }
+
+    private final class EmulatedRequest implements Request {
+
+        private final boolean in;
+
+        private
+        @Nullable
+        Object clientData = null;
+
+        private ByteBuffer buffer;
+        private int length;
+        private boolean queued = false;
+
+        private EmulatedRequest(final boolean in) {
+            this.in = in;
+        }
+
+        @Override
+        public boolean queue(final ByteBuffer buffer, final int length) {
+            synchronized (lock) {
+                if (closed || queued) {
+                    return false;
+                }
+                this.buffer = buffer;
+                this.length = length;
+                queued = true;
+
+                if (in) {
+                    final long now = System.nanoTime();
+                    if (queuedIn.isEmpty() && now - nextReport > 0) {
+                        // nothing was polling, so no reports piled up
+                        nextReport = now;
+                    }
+                    queuedIn.add(this);
+                } else {
+                    receive(this);
+                }
+                lock.notifyAll();
+                signalNext();
+                return true;
+            }
+        }
+
+        @Override
+        public boolean cancel() {
+            synchronized (lock) {
+                if (!queued || !queuedIn.remove(this)) {
+                    return false;
+                }
+                completed.add(this);
+                lock.notifyAll();
+                signalNext();
+                return true;
+            }
+        }
+
+        @Override
+        public void close() {
+            cancel();
+        }
+
+        @Override
+        public
+        @Nullable
+        Object getClientData() {
+            return clientData;
+        }
+
+        @Override
+        public void setClientData(@Nullable final Object data) {
+            clientData = data;
+        }
+    }
+
+    /**
+     * One thread signalling the reports of all emulated keys with a completion signal when they
+     * fall due, without allocating.
+     */
+    private static final class ReportTimer implements Runnable {
+
+        /**
+         * Longest the timer sleeps, so it need not track keys being added.
+         */
+        private static final long MAX_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private static
+        @Nullable
+        ReportTimer instance = null;
+
+        private final Thread thread;
+
+        /**
+         * Keys with a completion signal. Replaced, never modified.
+         */
+        private volatile EmulatedOnlyKey[] keys = new EmulatedOnlyKey[0];
+
+        private ReportTimer() {
+            thread = new Thread(this, "emulatedOnlyKey");
+            thread.setDaemon(true);
+        }
+
+        private static synchronized ReportTimer get() {
+            if (instance == null) {
+                instance = new ReportTimer();
+                instance.thread.start();
+            }
+            return instance;
+        }
+
+        private synchronized void add(final EmulatedOnlyKey key) {
+            for (final EmulatedOnlyKey k : keys) {
+                if (k == key) {
+                    return;
+                }
+            }
+            final EmulatedOnlyKey[] next = new EmulatedOnlyKey[keys.length + 1];
+            System.arraycopy(keys, 0, next, 0, keys.length);
+            next[keys.length] = key;
+            keys = next;
+            wake();
+        }
+
+        private synchronized void remove(final EmulatedOnlyKey key) {
+            final EmulatedOnlyKey[] prev = keys;
+            for (int i = 0; i < prev.length; i++) {
+                if (prev[i] == key) {
+                    final EmulatedOnlyKey[] next = new EmulatedOnlyKey[prev.length - 1];
+                    System.arraycopy(prev, 0, next, 0, i);
+                    System.arraycopy(prev, i + 1, next, i, next.length - i);
+                    keys = next;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Have the timer look at the keys again, as one has been armed.
+         */
+        private void wake() {
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            final Runnable[] fire = new Runnable[1];
+            while (true) {
+                final long now = System.nanoTime();
+                long until = now + MAX_SLEEP_NANOS;
+                for (final EmulatedOnlyKey k : keys) {
+                    until = k.checkDue(now, until, fire);
+                    if (fire[0] != null) {
+                        fire[0].run();
+                        fire[0] = null;
+                    }
+                }
+                // arming a key since it was looked at leaves a permit
+                LockSupport.parkNanos(this, until - System.nanoTime());
+            }
+        }
+    }
+}
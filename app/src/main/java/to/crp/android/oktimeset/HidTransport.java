@@ -0,0 +1,108 @@
+package to.crp.android.oktimeset;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries HID reports between an {@link OnlyKey} session and the device.
+ * <p>
+ * Modelled on the Android USB host API: requests are created per endpoint, queued with a buffer,
+ * and reaped in completion order through {@link #await(long)} by the thread servicing the session.
+ * Requests are identified by their client data. A session sharing its thread with others sets a
+ * completion signal, and reaps when signalled.
+ */
+interface HidTransport {
+
+    /**
+     * Timeout for {@link #await(long)} to block until a request completes.
+     */
+    long WAIT_FOREVER = -1;
+
+    /**
+     * @return The size of an IN report.
+     */
+    int getInPacketSize();
+
+    /**
+     * @return The size of an OUT report.
+     */
+    int getOutPacketSize();
+
+    /**
+     * Create a request.
+     *
+     * @param in Whether the request is for the IN endpoint, rather than OUT.
+     * @return The request.
+     * @throws IOException Thrown if the request could not be set up.
+     */
+    Request newRequest(boolean in) throws IOException;
+
+    /**
+     * Wait for a queued request to complete.
+     *
+     * @param timeoutMs How long to wait in milliseconds, 0 to return at once if nothing has
+     *                  completed, or {@link #WAIT_FOREVER}. Only {@link #WAIT_FOREVER} is supported
+     *                  until a completion signal is set, and only 0 after that.
+     * @return The completed request, or null if none completed in time.
+     * @throws IOException Thrown on error.
+     */
+    @Nullable
+    Request await(long timeoutMs) throws IOException;
+
+    /**
+     * Have the transport tell whenever a request completes or the transport fails, so the thread
+     * servicing the session can be shared and need not wait or poll. The signal is run on
+     * whichever thread sees the completion, so it must only hand it on, without blocking; it may
+     * also run when nothing has completed. {@link #await(long)} then returns what has completed
+     * without waiting.
+     *
+     * @param signal The signal, or null for none.
+     */
+    void setCompletionSignal(@Nullable Runnable signal);
+
+    /**
+     * Close the transport. Requests may not be used afterwards.
+     */
+    void close();
+
+    /**
+     * A request on one endpoint, reused for many transfers.
+     */
+    interface Request {
+
+        /**
+         * Queue a transfer. IN data is written into, and OUT data read from, the start of the
+         * buffer, regardless of its position.
+         *
+         * @param buffer The buffer.
+         * @param length The number of bytes to transfer.
+         * @return Whether the transfer was queued.
+         */
+        boolean queue(ByteBuffer buffer, int length);
+
+        /**
+         * Cancel a queued transfer. It will still be returned by {@link #await(long)}.
+         *
+         * @return Whether the transfer was cancelled.
+         */
+        boolean cancel();
+
+        /**
+         * Release the request.
+         */
+        void close();
+
+        /**
+         * @return The client data.
+         */
+        @Nullable
+        Object getClientData();
+
+        /**
+         * @param data The client data.
+         */
+        void setClientData(@Nullable Object data);
+    }
+}
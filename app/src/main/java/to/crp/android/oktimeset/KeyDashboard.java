@@ -0,0 +1,217 @@
+package to.crp.android.oktimeset;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One row per OnlyKey attached to {@link OKSyncService}: its state, last sync and latency.
+ * <p>
+ * Changes are not shown as they are reported. {@link #invalidate()} asks for the next display
+ * frame, once however often it is called before then; the rows are then taken from the service
+ * in one go and compared with those shown, and only rows that changed are bound again. A hub of
+ * keys changing state at once thus costs the UI thread one diff per frame, not a layout pass per
+ * event. Used on the main thread only.
+ */
+final class KeyDashboard extends RecyclerView.Adapter<KeyDashboard.Holder>
+        implements Choreographer.FrameCallback {
+
+    private final Context context;
+    private final Choreographer choreographer = Choreographer.getInstance();
+
+    /**
+     * The rows shown, by device id.
+     */
+    private List<KeyRow> rows = Collections.emptyList();
+
+    private
+    @Nullable
+    OKSyncService service = null;
+
+    /**
+     * Whether a frame callback is posted.
+     */
+    private boolean posted = false;
+
+    /**
+     * Create a dashboard.
+     *
+     * @param context The context to get strings from.
+     */
+    KeyDashboard(final Context context) {
+        this.context = context;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Show the keys of a service.
+     *
+     * @param service The service, or null to show none.
+     */
+    void setService(@Nullable final OKSyncService service) {
+        this.service = service;
+        invalidate();
+    }
+
+    /**
+     * Bring the rows up to date on the next frame.
+     */
+    void invalidate() {
+        if (!posted) {
+            posted = true;
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Drop any update asked for and not yet made.
+     */
+    void cancel() {
+        if (posted) {
+            posted = false;
+            choreographer.removeFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(final long frameTimeNanos) {
+        posted = false;
+        final List<KeyRow> prev = rows;
+        final List<KeyRow> next =
+                service == null ? Collections.<KeyRow>emptyList() : service.getKeys();
+        // both are in device id order, so there are no moves to look for
+        final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return prev.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return next.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(final int oldPosition, final int newPosition) {
+                return prev.get(oldPosition).getId() == next.get(newPosition).getId();
+            }
+
+            @Override
+            public boolean areContentsTheSame(final int oldPosition, final int newPosition) {
+                return prev.get(oldPosition).equals(next.get(newPosition));
+            }
+        }, false);
+        rows = next;
+        diff.dispatchUpdatesTo(this);
+    }
+
+    @Override
+    public Holder onCreateViewHolder(final ViewGroup parent, final int viewType) {
+        return new Holder(LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.item_key, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(final Holder holder, final int position) {
+        final KeyRow row = rows.get(position);
+        holder.name.setText(row.getName());
+        holder.status.setText(status(row));
+
+        final String detail = detail(row);
+        holder.detail.setText(detail);
+        holder.detail.setVisibility(detail.isEmpty() ? View.GONE : View.VISIBLE);
+    }
+
+    @Override
+    public int getItemCount() {
+        return rows.size();
+    }
+
+    @Override
+    public long getItemId(final int position) {
+        return rows.get(position).getId();
+    }
+
+    /**
+     * @param row A row.
+     * @return Where the key is, for humans.
+     */
+    private String status(final KeyRow row) {
+        final ProvisioningPipeline.Outcome outcome = row.getOutcome();
+        if (outcome != null) {
+            switch (outcome) {
+                case SET:
+                    return context.getString(R.string.msg_set_time);
+                case IMPRECISE:
+                    return context.getString(R.string.row_imprecise);
+                case DENIED:
+                    return context.getString(R.string.msg_perm_denied);
+                case DETACHED:
+                    return context.getString(R.string.msg_ok_detached);
+                case FAILED:
+                    return context.getString(R.string.row_failed);
+            }
+        }
+
+        final int state = row.getState();
+        if (KeyState.failed(state)) {
+            return context.getString(R.string.row_failed);
+        }
+        if (KeyState.sync(state) == KeyState.SYNC_PENDING) {
+            return context.getString(R.string.row_setting_time);
+        }
+        if (KeyState.locked(state) != KeyState.UNKNOWN) {
+            return context.getString(KeyState.locked(state) == KeyState.YES ?
+                    R.string.msg_dev_locked : R.string.msg_dev_unlocked);
+        }
+        if (KeyState.initialized(state) != KeyState.UNKNOWN) {
+            return context.getString(KeyState.initialized(state) == KeyState.YES ?
+                    R.string.msg_waiting_for_unlock : R.string.msg_setup_required);
+        }
+        return context.getString(R.string.msg_ok_attached);
+    }
+
+    /**
+     * @param row A row.
+     * @return The last sync and the latency of the key, or "" if it has neither.
+     */
+    private String detail(final KeyRow row) {
+        final TimeSync.Result sync = row.getSync();
+        final String synced = sync == null ? "" : context.getString(R.string.row_sync,
+                sync.getResidualNanos() / 1e6, sync.getUncertaintyNanos() / 1e6);
+        final long latency = row.getLatencyNanos();
+        if (latency < 0) {
+            return synced;
+        }
+        final String took = context.getString(R.string.row_latency,
+                TimeUnit.NANOSECONDS.toMillis(latency));
+        return synced.isEmpty() ? took : synced + ", " + took;
+    }
+
+    /**
+     * The views of a row.
+     */
+    static final class Holder extends RecyclerView.ViewHolder {
+
+        private final TextView name;
+        private final TextView status;
+        private final TextView detail;
+
+        private Holder(final View itemView) {
+            super(itemView);
+            name = (TextView) itemView.findViewById(R.id.key_name);
+            status = (TextView) itemView.findViewById(R.id.key_status);
+            detail = (TextView) itemView.findViewById(R.id.key_detail);
+        }
+    }
+}
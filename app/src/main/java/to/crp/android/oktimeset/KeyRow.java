@@ -0,0 +1,111 @@
+package to.crp.android.oktimeset;
+
+import android.support.annotation.Nullable;
+
+/**
+ * What the dashboard shows of one attached OnlyKey, as of when it was taken. Rows are compared
+ * with {@link #equals(Object)} to find the ones that need to be shown again.
+ */
+final class KeyRow {
+
+    private final int id;
+    private final String name;
+    private final int state;
+
+    private final
+    @Nullable
+    ProvisioningPipeline.Outcome outcome;
+
+    private final
+    @Nullable
+    TimeSync.Result sync;
+
+    private final long latencyNanos;
+
+    /**
+     * Create a row.
+     *
+     * @param id           The device id.
+     * @param name         The device name.
+     * @param state        The protocol state word of the key, see {@link KeyState}, 0 until it
+     *                     is opened.
+     * @param outcome      How the key left the pipeline, or null if it has not.
+     * @param sync         The last precision sync, or null.
+     * @param latencyNanos The time from attach to time set, or -1.
+     */
+    KeyRow(final int id, final String name, final int state,
+           @Nullable final ProvisioningPipeline.Outcome outcome,
+           @Nullable final TimeSync.Result sync, final long latencyNanos) {
+        this.id = id;
+        this.name = name;
+        this.state = state;
+        this.outcome = outcome;
+        this.sync = sync;
+        this.latencyNanos = latencyNanos;
+    }
+
+    /**
+     * @return The device id.
+     */
+    int getId() {
+        return id;
+    }
+
+    /**
+     * @return The device name.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return The protocol state word of the key.
+     */
+    int getState() {
+        return state;
+    }
+
+    /**
+     * @return How the key left the pipeline, or null if it has not.
+     */
+    @Nullable
+    ProvisioningPipeline.Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @return The last precision sync, or null.
+     */
+    @Nullable
+    TimeSync.Result getSync() {
+        return sync;
+    }
+
+    /**
+     * @return The time from attach to time set, or -1.
+     */
+    long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    /**
+     * Syncs are compared by identity: a key makes a new result for each sync.
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof KeyRow)) {
+            return false;
+        }
+        final KeyRow r = (KeyRow) o;
+        return id == r.id && state == r.state && latencyNanos == r.latencyNanos
+                && outcome == r.outcome && sync == r.sync && name.equals(r.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * id + state) + (int) latencyNanos;
+    }
+}
@@ -0,0 +1,118 @@
+package to.crp.android.oktimeset;
+
+/**
+ * Layout of the protocol state word of an {@link OnlyKey}, see {@link OnlyKey#getState()}.
+ * <p>
+ * The whole state is one int, so it is read in one go and changed with compare-and-set: two bits
+ * each for whether the key is initialized and whether it is locked, each of which is
+ * {@link #UNKNOWN} until the key has reported it, two bits for the last time set, and a bit
+ * for a failed session.
+ */
+final class KeyState {
+
+    static final int UNKNOWN = 0;
+    static final int NO = 1;
+    static final int YES = 2;
+
+    /**
+     * No time set has been asked for.
+     */
+    static final int SYNC_NONE = 0;
+
+    /**
+     * A time set is on its way.
+     */
+    static final int SYNC_PENDING = 1;
+
+    /**
+     * The time has been set, on time if it was a precision sync.
+     */
+    static final int SYNC_SET = 2;
+
+    /**
+     * The time has been set by a precision sync that was queued late.
+     */
+    static final int SYNC_LATE = 3;
+
+    static final int INITIALIZED_SHIFT = 0;
+    static final int LOCKED_SHIFT = 2;
+    static final int SYNC_SHIFT = 4;
+
+    private static final int FIELD_MASK = 0x3;
+
+    /**
+     * The session failed.
+     */
+    static final int FAILED = 1 << 6;
+
+    private KeyState() {
+    }
+
+    /**
+     * @param state A state word.
+     * @param shift The field, one of the {@code _SHIFT} constants.
+     * @return The value of the field.
+     */
+    static int get(final int state, final int shift) {
+        return state >>> shift & FIELD_MASK;
+    }
+
+    /**
+     * @param state A state word.
+     * @param shift The field, one of the {@code _SHIFT} constants.
+     * @param value The value of the field.
+     * @return The state word with the field set.
+     */
+    static int with(final int state, final int shift, final int value) {
+        return state & ~(FIELD_MASK << shift) | value << shift;
+    }
+
+    /**
+     * @param state A state word.
+     * @return {@link #UNKNOWN}, {@link #NO} or {@link #YES}.
+     */
+    static int initialized(final int state) {
+        return get(state, INITIALIZED_SHIFT);
+    }
+
+    /**
+     * @param state A state word.
+     * @return {@link #UNKNOWN}, {@link #NO} or {@link #YES}.
+     */
+    static int locked(final int state) {
+        return get(state, LOCKED_SHIFT);
+    }
+
+    /**
+     * @param state A state word.
+     * @return One of the {@code SYNC_} constants.
+     */
+    static int sync(final int state) {
+        return get(state, SYNC_SHIFT);
+    }
+
+    /**
+     * @param state A state word.
+     * @return Whether the session failed.
+     */
+    static boolean failed(final int state) {
+        return (state & FAILED) != 0;
+    }
+
+    private static String triState(final int value) {
+        return value == YES ? "yes" : value == NO ? "no" : "?";
+    }
+
+    /**
+     * @param state A state word.
+     * @return The state for humans.
+     */
+    static String toString(final int state) {
+        final int sync = sync(state);
+        return "initialized " + triState(initialized(state))
+                + ", locked " + triState(locked(state))
+                + ", time " + (sync == SYNC_SET ? "set" : sync == SYNC_LATE ? "set late"
+                : sync == SYNC_PENDING ? "pending" : "not set")
+                + (failed(state) ? ", failed" : "");
+    }
+}
@@ -0,0 +1,218 @@
+package to.crp.android.oktimeset;
+
+import android.support.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the phases of getting an OnlyKey's clock set, from the USB attach intent to the set time
+ * message being written.
+ * <p>
+ * Each attached device gets a {@link Span} that records when it reaches each {@link Phase}. Once
+ * the time has been set, the time spent in each phase is kept in a fixed size ring shared by all
+ * devices, summarised by {@link #dump(PrintWriter)}.
+ */
+class LifecycleTrace {
+
+    /**
+     * Phases in the order they are reached.
+     */
+    enum Phase {
+        INTENT_RECEIVED,
+        PERMISSION_GRANTED,
+        DEVICE_OPENED,
+        FIRST_STATUS,
+        UNLOCK_SEEN,
+        TIME_SET
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    /**
+     * Column of {@link #ring} holding the total time.
+     */
+    private static final int TOTAL = PHASES.length;
+
+    /**
+     * Time spent reaching each phase from the one before, and the total, per finished span.
+     */
+    private final long[][] ring;
+
+    private int next = 0;
+    private int count = 0;
+    private int abandoned = 0;
+
+    private final ConcurrentMap<Integer, Span> spans = new ConcurrentHashMap<>();
+
+    /**
+     * Create a trace.
+     *
+     * @param capacity The number of finished spans to keep.
+     */
+    LifecycleTrace(final int capacity) {
+        ring = new long[PHASES.length + 1][capacity];
+    }
+
+    /**
+     * Start timing a device. Any span already running for it is abandoned.
+     *
+     * @param deviceId   The device id.
+     * @param startNanos When the intent was received, by {@link System#nanoTime()}.
+     * @return The span.
+     */
+    Span begin(final int deviceId, final long startNanos) {
+        final Span span = new Span(deviceId, startNanos);
+        if (spans.put(deviceId, span) != null) {
+            synchronized (this) {
+                abandoned++;
+            }
+        }
+        return span;
+    }
+
+    /**
+     * @param deviceId The device id.
+     * @return The span running for the device, or null.
+     */
+    @Nullable
+    Span get(final int deviceId) {
+        return spans.get(deviceId);
+    }
+
+    /**
+     * Record that a device has reached a phase, if a span is running for it.
+     *
+     * @param deviceId The device id.
+     * @param phase    The phase.
+     */
+    void mark(final int deviceId, final Phase phase) {
+        final Span span = spans.get(deviceId);
+        if (span != null) {
+            span.mark(phase);
+        }
+    }
+
+    /**
+     * Stop timing a device that went away before its time was set.
+     *
+     * @param deviceId The device id.
+     */
+    void abandon(final int deviceId) {
+        final Span span = spans.remove(deviceId);
+        if (span != null && !span.isFinished()) {
+            synchronized (this) {
+                abandoned++;
+            }
+        }
+    }
+
+    /**
+     * Add a finished span to the ring.
+     */
+    private synchronized void record(final long[] marks) {
+        long prev = marks[0];
+        for (int p = 1; p < PHASES.length; p++) {
+            // phases may be skipped, e.g. permission is not asked for again
+            final long at = marks[p] == 0 ? prev : marks[p];
+            ring[p][next] = at - prev;
+            prev = at;
+        }
+        ring[TOTAL][next] = prev - marks[0];
+
+        next = (next + 1) % ring[0].length;
+        count = Math.min(count + 1, ring[0].length);
+    }
+
+    /**
+     * Write p50/p99 per phase over the finished spans.
+     *
+     * @param writer The writer.
+     */
+    void dump(final PrintWriter writer) {
+        final long[][] copy;
+        final int n;
+        final int lost;
+        synchronized (this) {
+            n = count;
+            lost = abandoned;
+            copy = new long[ring.length][];
+            for (int c = 0; c < ring.length; c++) {
+                copy[c] = Arrays.copyOf(ring[c], n);
+            }
+        }
+
+        writer.println("OnlyKey lifecycle, " + n + " spans, " + lost + " abandoned, "
+                + spans.size() + " running:");
+        if (n == 0) {
+            return;
+        }
+        for (int p = 1; p <= TOTAL; p++) {
+            Arrays.sort(copy[p]);
+            writer.println(String.format(Locale.US, "  %-20s p50 %10.3f ms  p99 %10.3f ms",
+                    p == TOTAL ? "TOTAL" : PHASES[p].name(),
+                    millis(copy[p][percentile(n, 50)]), millis(copy[p][percentile(n, 99)])));
+        }
+    }
+
+    private static int percentile(final int n, final int pct) {
+        return Math.min(n - 1, (int) Math.ceil(n * pct / 100.0) - 1);
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Phase timestamps of one device.
+     */
+    final class Span {
+
+        private final int deviceId;
+
+        private final long[] marks = new long[PHASES.length];
+
+        private volatile boolean finished = false;
+
+        private Span(final int deviceId, final long startNanos) {
+            this.deviceId = deviceId;
+            marks[0] = startNanos;
+        }
+
+        /**
+         * Record that the device has reached a phase. Only the first time counts. Reaching
+         * {@link Phase#TIME_SET} finishes the span.
+         *
+         * @param phase The phase.
+         */
+        void mark(final Phase phase) {
+            final int p = phase.ordinal();
+            if (marks[p] != 0 || finished) {
+                return;
+            }
+            marks[p] = System.nanoTime();
+
+            if (phase == Phase.TIME_SET) {
+                finished = true;
+                record(marks);
+                spans.remove(deviceId, this);
+            }
+        }
+
+        private boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * @return The time from attach to time set, or -1 if the time has not been set yet.
+         */
+        long getTotalNanos() {
+            // marks are written before finished
+            return finished ? marks[Phase.TIME_SET.ordinal()] - marks[0] : -1;
+        }
+    }
+}
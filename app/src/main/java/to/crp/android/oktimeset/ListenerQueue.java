@@ -0,0 +1,319 @@
+package to.crp.android.oktimeset;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hands the events of one {@link OnlyKey} to a listener on an executor, so a slow listener never
+ * holds up the thread servicing the key.
+ * <p>
+ * Events go into a bounded ring, which the thread servicing the key fills without blocking or
+ * allocating, and which is drained on the executor by one task at a time. A new drain task is
+ * only submitted when none is running. Events come from the one servicing thread, even failures
+ * met elsewhere, see {@link OnlyKey#failLater(IOException)}, but slots are still claimed with
+ * compare-and-set, which costs nothing more than a plain write when uncontended.
+ * <p>
+ * What happens to an event that does not fit is up to the {@link Overflow} policy, except for
+ * the error event, of which a session has at most one and which is always delivered. Events
+ * that are kept are delivered in the order they arrived, those parked included, so an event
+ * that fits once the ring has room again is not held up by one parked before it.
+ */
+final class ListenerQueue implements OKListener {
+
+    /**
+     * What to do with an event that does not fit in the ring.
+     */
+    enum Overflow {
+        /**
+         * Keep only the latest event of each type, delivered in its place among the others.
+         * Suits listeners that only care about the current state of the key.
+         */
+        COALESCE,
+        /**
+         * Drop the event.
+         */
+        DROP,
+        /**
+         * Drop the event and fail the session, for listeners that must see every event.
+         */
+        FAIL
+    }
+
+    /**
+     * Events held per listener by default: far more than a key sends while a listener on the
+     * main thread is busy for a frame.
+     */
+    static final int DEFAULT_CAPACITY = 64;
+
+    private static final OKEvent.OKEType[] TYPES = OKEvent.OKEType.values();
+
+    private final OKListener listener;
+    private final Executor executor;
+    private final Overflow overflow;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<OKEvent> ring;
+
+    /**
+     * Sequence of the next slot to claim.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Sequence of the next slot to deliver. Only written by the drain task.
+     */
+    private volatile long head = 0;
+
+    /**
+     * Events that did not fit, by type. Guarded by itself: only overflow takes the lock, and the
+     * drain task for as long as it takes to pick the next one.
+     */
+    private final OKEvent[] parked = new OKEvent[TYPES.length];
+
+    /**
+     * For each parked event, the sequence of the first slot claimed after it, so it is delivered
+     * after the events in the ring before it and before those after it.
+     */
+    private final long[] parkedAt = new long[TYPES.length];
+
+    /**
+     * For each parked event, when it was parked, by {@link #parks}, to order those parked while
+     * the ring was full.
+     */
+    private final long[] parkedOrder = new long[TYPES.length];
+    private long parks = 0;
+
+    /**
+     * The number of events parked. Only written under the lock.
+     */
+    private volatile int parkedCount = 0;
+
+    /**
+     * Whether a drain task has been submitted and not yet finished.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final AtomicInteger coalesced = new AtomicInteger();
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Create a queue.
+     *
+     * @param listener The listener to deliver to.
+     * @param executor Where to deliver.
+     * @param capacity The number of events held, rounded up to a power of two.
+     * @param overflow What to do with events that do not fit.
+     */
+    ListenerQueue(final OKListener listener, final Executor executor, final int capacity,
+                  final Overflow overflow) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Bad listener queue capacity " + capacity + "!");
+        }
+        this.listener = listener;
+        this.executor = executor;
+        this.overflow = overflow;
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.ring = new AtomicReferenceArray<>(this.capacity);
+    }
+
+    /**
+     * @return The listener delivered to.
+     */
+    OKListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @return The number of events dropped because they did not fit.
+     */
+    int getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The number of events replaced by a later one of the same type because they did
+     * not fit.
+     */
+    int getCoalesced() {
+        return coalesced.get();
+    }
+
+    @Override
+    public void okError(final OKEvent event) {
+        offer(event);
+    }
+
+    @Override
+    public void okMessage(final OKEvent event) {
+        offer(event);
+    }
+
+    @Override
+    public void okSetInitialized(final OKEvent event) {
+        offer(event);
+    }
+
+    @Override
+    public void okSetTime(final OKEvent event) {
+        offer(event);
+    }
+
+    @Override
+    public void okSetLocked(final OKEvent event) {
+        offer(event);
+    }
+
+    /**
+     * Queue an event for delivery. Never waits for the listener.
+     *
+     * @param event The event.
+     */
+    private void offer(final OKEvent event) {
+        if (!claim(event)) {
+            if (overflow == Overflow.COALESCE || event.getType() == OKEvent.OKEType.ERROR) {
+                park(event);
+            } else {
+                dropped.incrementAndGet();
+                if (overflow == Overflow.FAIL) {
+                    // the ring is full, so the error this causes is parked right behind it
+                    event.getKey().fail(new IOException("Listener "
+                            + listener.getClass().getName() + " fell behind!"));
+                }
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Put an event in the ring, if it has room.
+     *
+     * @param event The event.
+     * @return Whether it had room.
+     */
+    private boolean claim(final OKEvent event) {
+        long t;
+        do {
+            t = tail.get();
+            if (t - head >= capacity) {
+                return false;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        ring.lazySet((int) t & mask, event);
+        return true;
+    }
+
+    /**
+     * Keep an event aside until the events in the ring before it are delivered, in place of any
+     * earlier one of its type.
+     *
+     * @param event The event.
+     */
+    private void park(final OKEvent event) {
+        final int t = event.getType().ordinal();
+        synchronized (parked) {
+            if (parked[t] == null) {
+                parkedCount++;
+            } else {
+                coalesced.incrementAndGet();
+            }
+            parked[t] = event;
+            parkedAt[t] = tail.get();
+            parkedOrder[t] = parks++;
+        }
+    }
+
+    /**
+     * Submit the drain task, unless it is submitted already.
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drain);
+            } catch (RejectedExecutionException ree) {
+                // the executor is gone, and with it anyone to deliver to: leave the queue
+                // marked scheduled so nothing is submitted again
+            }
+        }
+    }
+
+    /**
+     * Deliver every event queued or parked, in the order they arrived, until there are none.
+     */
+    private void drain() {
+        while (true) {
+            OKEvent e;
+            while ((e = takeParked()) != null || (e = take()) != null) {
+                e.getType().deliver(listener, e);
+            }
+
+            scheduled.set(false);
+            // an event published since the ring was found empty must not be left behind
+            if (isEmpty() || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The next event in the ring, or null if there is none, or it has been claimed but
+     * not yet written.
+     */
+    @Nullable
+    private OKEvent take() {
+        final long h = head;
+        final int i = (int) h & mask;
+        final OKEvent e = ring.get(i);
+        if (e == null) {
+            return null;
+        }
+        ring.lazySet(i, null);
+        head = h + 1;
+        return e;
+    }
+
+    /**
+     * @return The earliest parked event, if the events in the ring before it have been
+     * delivered, otherwise null.
+     */
+    @Nullable
+    private OKEvent takeParked() {
+        if (parkedCount == 0) {
+            return null;
+        }
+        synchronized (parked) {
+            int first = -1;
+            for (int t = 0; t < TYPES.length; t++) {
+                if (parked[t] != null && (first < 0 || parkedOrder[t] < parkedOrder[first])) {
+                    first = t;
+                }
+            }
+            if (first < 0 || parkedAt[first] > head) {
+                return null;
+            }
+            final OKEvent e = parked[first];
+            parked[first] = null;
+            parkedCount--;
+            return e;
+        }
+    }
+
+    private boolean isEmpty() {
+        return ring.get((int) head & mask) == null && parkedCount == 0;
+    }
+}
@@ -1,17 +1,19 @@
 package to.crp.android.oktimeset;
 
 import android.app.Activity;
-import android.app.PendingIntent;
-import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbManager;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Gravity;
 import android.view.View;
 import android.view.animation.Animation;
@@ -21,31 +23,106 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ViewSwitcher;
 
-import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 /**
- * App to set the time on an OnlyKey when it is inserted into the Android device.
+ * Shows the progress of {@link OKSyncService} setting the time on attached OnlyKeys, while it is
+ * running, with a row per key in a {@link KeyDashboard}. Keys are handled by the service whether
+ * this is open or not.
+ * <p>
+ * Key events change the message at most once per display frame, through a
+ * {@link StatusChannel}, so a key that reports several states in quick succession fades to the
+ * last of them once. The messages are looked up once, so an event does not allocate.
  */
 public class MainActivity extends Activity implements OKListener {
 
     protected static final String TAG = "onlykey";
 
-    private static final String ACTION_USB_ATTACHED =
-            "android.hardware.usb.action.USB_DEVICE_ATTACHED";
-    private static final String ACTION_USB_DETACHED =
-            "android.hardware.usb.action.USB_DEVICE_DETACHED";
-    private static final String ACTION_USB_PERMISSION = "to.crp.android.oktimeset.USB_PERMISSION";
+    private
+    @Nullable
+    OKSyncService service = null;
+
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(final ComponentName name, final IBinder binder) {
+            service = ((OKSyncService.LocalBinder) binder).getService();
+            service.addListener(MainActivity.this);
+            service.addKeysListener(keysListener);
+            dashboard.setService(service);
+            setMessage(service.getStatus());
+        }
+
+        @Override
+        public void onServiceDisconnected(final ComponentName name) {
+            service = null;
+            dashboard.setService(null);
+            setMessage(getString(R.string.msg_attach_onlykey));
+        }
+    };
+
+    private TextSwitcher textSwitcher;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final Choreographer choreographer = Choreographer.getInstance();
 
     /**
-     * References to connected OnlyKeys by UsbDevice.
+     * The message the last status frame is to show, or null.
      */
-    private final Map<UsbDevice, OnlyKey> keys = new ConcurrentHashMap<>();
+    private
+    @Nullable
+    String shown = null;
+
+    private final StatusChannel<OnlyKey, String> statuses = new StatusChannel<>(
+            new StatusChannel.Frames() {
+                @Override
+                public void request() {
+                    choreographer.postFrameCallback(statusFrame);
+                }
+            },
+            new StatusChannel.Sink<OnlyKey, String>() {
+                @Override
+                public void show(final OnlyKey key, final String status) {
+                    // one line for all keys: the last key posted to wins
+                    shown = status;
+                }
+            });
+
+    private final Choreographer.FrameCallback statusFrame = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(final long frameTimeNanos) {
+            statuses.frame();
+            if (shown != null) {
+                setMessage(shown);
+                shown = null;
+            }
+        }
+    };
 
-    private UsbManager manager;
+    private final Runnable closeIfIdle = new Runnable() {
+        @Override
+        public void run() {
+            // stay up while the rest of a fleet is being worked through
+            if (service == null || service.isIdle()) {
+                Log.d(TAG, "Closing.");
+                finishAndRemoveTask();
+            }
+        }
+    };
 
-    private TextSwitcher textSwitcher;
+    private String msgError;
+    private String msgSetTime;
+    private String msgWaitingForUnlock;
+    private String msgSetupRequired;
+    private String msgDevLocked;
+    private String msgDevUnlocked;
+
+    private KeyDashboard dashboard;
+
+    private final OKSyncService.KeysListener keysListener = new OKSyncService.KeysListener() {
+        @Override
+        public void keysChanged() {
+            dashboard.invalidate();
+        }
+    };
 
     private ViewSwitcher.ViewFactory factory = new ViewSwitcher.ViewFactory() {
         @Override
@@ -62,14 +139,6 @@ public class MainActivity extends Activity implements OKListener {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        // only want the app opening oncee
-        if (!isTaskRoot()) {
-            Log.d(TAG, "App already open.");
-            finishAndRemoveTask();
-        }
-
-        manager = (UsbManager) getSystemService(Context.USB_SERVICE);
-
         textSwitcher = (TextSwitcher) findViewById(R.id.switcher);
         textSwitcher.setFactory(factory);
 
@@ -79,83 +148,41 @@ public class MainActivity extends Activity implements OKListener {
         textSwitcher.setInAnimation(in);
         textSwitcher.setOutAnimation(out);
 
+        textSwitcher.setCurrentText(getString(R.string.msg_attach_onlykey));
 
-        Log.d(TAG, "onCreate(), action: " + getIntent().getAction());
-
-        if (getIntent().getAction().equals("android.intent.action.MAIN")) {
-            toastLong(getString(R.string.launch_err));
-            finishAndRemoveTask();
-        }
-
-        handleAttachDetachIntent(getIntent());
-
-        // need to listen for permission requests
-        final BroadcastReceiver bReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                Log.d(TAG, "broadcast, action: " + intent);
-
-                final UsbDevice dev = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
-
-                if (ACTION_USB_PERMISSION.equalsIgnoreCase(intent.getAction())) {
-                    if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
-                        Log.d(TAG, "Permission granted.");
-
-                        try {
-                            addOnlyKey(dev);
-                        } catch (IOException ioe) {
-                            handleError(ioe);
-                            Log.e(TAG, ioe.getMessage(), ioe);
-                        }
-                    } else {
-                        setMessage(getString(R.string.msg_perm_denied));
-                        Log.d(TAG, "Permission denied.");
-                    }
-                }
+        msgError = getString(R.string.msg_error);
+        msgSetTime = getString(R.string.msg_set_time);
+        msgWaitingForUnlock = getString(R.string.msg_waiting_for_unlock);
+        msgSetupRequired = getString(R.string.msg_setup_required);
+        msgDevLocked = getString(R.string.msg_dev_locked);
+        msgDevUnlocked = getString(R.string.msg_dev_unlocked);
 
-                handleAttachDetachIntent(intent);
-            }
-        };
-        final IntentFilter filter = new IntentFilter();
-        filter.addAction(ACTION_USB_ATTACHED);
-        filter.addAction(ACTION_USB_DETACHED);
-        filter.addAction(ACTION_USB_PERMISSION);
-        registerReceiver(bReceiver, filter);
+        dashboard = new KeyDashboard(this);
+        final RecyclerView keys = (RecyclerView) findViewById(R.id.keys);
+        keys.setLayoutManager(new LinearLayoutManager(this));
+        keys.setAdapter(dashboard);
     }
 
     @Override
-    protected void onNewIntent(Intent intent) {
-        super.onNewIntent(intent);
-        Log.d(TAG, "onNewIntent(), action: " + intent.getAction());
-        handleAttachDetachIntent(intent);
+    protected void onStart() {
+        super.onStart();
+        // no BIND_AUTO_CREATE: the service runs only while it has keys
+        bindService(new Intent(this, OKSyncService.class), connection, 0);
     }
 
-    /**
-     * Handle a USB attach/detach intent.
-     *
-     * @param intent The USB attach/detach intent to handle.
-     */
-    private void handleAttachDetachIntent(final Intent intent) {
-        final UsbDevice dev = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
-
-        if (ACTION_USB_ATTACHED.equalsIgnoreCase(intent.getAction())) {
-            Log.d(TAG, "OnlyKey attached.");
-            setMessage(getString(R.string.msg_ok_attached));
-            permissionsCheck(dev);
-        } else if (ACTION_USB_DETACHED.equalsIgnoreCase(intent.getAction())) {
-            synchronized (keys) {
-                if (keys.containsKey(dev)) {
-                    final OnlyKey k = keys.remove(dev);
-                    k.cancel();
-                }
-            }
-            Log.d(TAG, "OnlyKey detached.");
-            setMessage(getString(R.string.msg_ok_detached));
-
-            doFinish();
-        } else {
-            Log.e(TAG, "Unhandled intent action: " + intent.getAction());
+    @Override
+    protected void onStop() {
+        if (service != null) {
+            service.removeListener(this);
+            service.removeKeysListener(keysListener);
+            service = null;
         }
+        unbindService(connection);
+        dashboard.cancel();
+        choreographer.removeFrameCallback(statusFrame);
+        statuses.clear();
+        handler.removeCallbacks(closeIfIdle);
+        super.onStop();
     }
 
     /**
@@ -164,12 +191,7 @@ public class MainActivity extends Activity implements OKListener {
      * @param msg The message to display.
      */
     private void setMessage(final String msg) {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                textSwitcher.setText(msg);
-            }
-        });
+        textSwitcher.setText(msg);
     }
 
     /**
@@ -188,110 +210,38 @@ public class MainActivity extends Activity implements OKListener {
      * @param isShort Whether the delay should be short.
      */
     private void toast(final String msg, final boolean isShort) {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                Toast.makeText(getApplicationContext(), msg,
-                        isShort ? Toast.LENGTH_SHORT : Toast.LENGTH_LONG).show();
-            }
-        });
-    }
-
-    private void addOnlyKey(final UsbDevice device) throws IOException {
-        final OnlyKey k = OnlyKey.getOnlyKey(device, manager);
-        k.addListener(this);
-        keys.put(device, k);
-        new Thread(k, "onlyKey").start();
-    }
-
-    /**
-     * Check USB device permissions.
-     *
-     * @param dev The USB device.
-     */
-    private void permissionsCheck(final UsbDevice dev) {
-        if (manager.hasPermission(dev)) {
-            Log.d(TAG, "Already have permission.");
-            try {
-                addOnlyKey(dev);
-            } catch (IOException ioe) {
-                handleError(ioe);
-            }
-        } else {
-            Log.d(TAG, "Requesting permission for attached key.");
-            final PendingIntent mPermissionIntent =
-                    PendingIntent.getBroadcast(getApplicationContext(), 0,
-                            new Intent(ACTION_USB_PERMISSION), 0);
-            manager.requestPermission(dev, mPermissionIntent);
-        }
-    }
-
-    /**
-     * Set the displayed message, toast it, log it
-     *
-     * @param e The exception to handle.
-     */
-    private void handleError(final Exception e) {
-        setMessage("Error!");
-        toastLong("Error: " + e.getMessage());
-        Log.e(TAG, e.getMessage(), e);
+        Toast.makeText(getApplicationContext(), msg,
+                isShort ? Toast.LENGTH_SHORT : Toast.LENGTH_LONG).show();
     }
 
     @Override
     public void okError(final OKEvent event) {
-        handleError(event.getException());
-    }
-
-    private void doFinish() {
-        for (final OnlyKey k : keys.values()) {
-            k.cancel();
-        }
-        Log.d(TAG, "Closing.");
-        finishAndRemoveTask();
+        final Exception e = event.getException();
+        statuses.post(event.getKey(), msgError);
+        toastLong("Error: " + e.getMessage());
+        Log.e(TAG, e.getMessage(), e);
     }
 
     @Override
-    public void okSetTime(OKEvent event) {
-        setMessage(getString(R.string.msg_set_time));
-        new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                doFinish();
-            }
-        }, 1500);
+    public void okSetTime(final OKEvent event) {
+        statuses.post(event.getKey(), msgSetTime);
+        handler.removeCallbacks(closeIfIdle);
+        handler.postDelayed(closeIfIdle, 1500);
     }
 
     @Override
     public void okMessage(final OKEvent event) {
-        setMessage(event.getStringVal());
+        statuses.post(event.getKey(), event.getStringVal());
     }
 
     @Override
     public void okSetInitialized(final OKEvent event) {
-        final boolean initialized = event.getBoolVal();
-        final String msg = initialized ?
-                getString(R.string.msg_waiting_for_unlock) : getString(R.string.msg_setup_required);
-
-        Log.d(TAG, msg);
-        setMessage(msg);
+        statuses.post(event.getKey(),
+                event.getBoolVal() ? msgWaitingForUnlock : msgSetupRequired);
     }
 
     @Override
     public void okSetLocked(final OKEvent event) {
-        final boolean locked = event.getBoolVal();
-        final String msg = locked ?
-                getString(R.string.msg_dev_locked) : getString(R.string.msg_dev_unlocked);
-
-        Log.d(TAG, msg);
-        setMessage(msg);
-
-        // kick off time set on unlock
-        if (!locked) {
-            try {
-                event.getKey().setTime();
-            } catch (IOException ioe) {
-                handleError(ioe);
-            }
-        }
+        statuses.post(event.getKey(), event.getBoolVal() ? msgDevLocked : msgDevUnlocked);
     }
 }
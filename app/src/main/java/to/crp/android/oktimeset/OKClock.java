@@ -0,0 +1,23 @@
+package to.crp.android.oktimeset;
+
+/**
+ * Source of the wall clock time written to an OnlyKey, replaceable to make the frames written
+ * deterministic.
+ */
+interface OKClock {
+
+    /**
+     * The system clock.
+     */
+    OKClock SYSTEM = new OKClock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * @return The current time in milliseconds since the epoch.
+     */
+    long currentTimeMillis();
+}
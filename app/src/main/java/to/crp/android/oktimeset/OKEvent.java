@@ -1,23 +1,66 @@
 package to.crp.android.oktimeset;
 
+import android.support.annotation.Nullable;
+
 /**
  * Class representing events generated by an {@link OnlyKey}.
+ * <p>
+ * Events are immutable, so an {@link OnlyKey} may dispatch the same instance for every repeat of
+ * a state change. Only {@link OKEType#ERROR} events carry an exception.
  */
 public class OKEvent {
 
+    /**
+     * Event types, each knowing which {@link OKListener} method it is delivered to.
+     */
     enum OKEType {
-        ERROR,
-        SET_INITIALIZED,
-        SET_LOCKED,
-        SET_TIME,
-        MSG
+        ERROR {
+            @Override
+            void deliver(final OKListener listener, final OKEvent event) {
+                listener.okError(event);
+            }
+        },
+        SET_INITIALIZED {
+            @Override
+            void deliver(final OKListener listener, final OKEvent event) {
+                listener.okSetInitialized(event);
+            }
+        },
+        SET_LOCKED {
+            @Override
+            void deliver(final OKListener listener, final OKEvent event) {
+                listener.okSetLocked(event);
+            }
+        },
+        SET_TIME {
+            @Override
+            void deliver(final OKListener listener, final OKEvent event) {
+                listener.okSetTime(event);
+            }
+        },
+        MSG {
+            @Override
+            void deliver(final OKListener listener, final OKEvent event) {
+                listener.okMessage(event);
+            }
+        };
+
+        /**
+         * Call the method of a listener for an event of this type.
+         *
+         * @param listener The listener.
+         * @param event    The event.
+         */
+        abstract void deliver(OKListener listener, OKEvent event);
     }
 
     private final OnlyKey key;
     private final OKEType type;
     private final boolean boolVal;
     private final String stringVal;
-    private final Exception e;
+    private final
+    @Nullable
+    Exception e;
 
     /**
      * Create an event.
@@ -26,7 +69,7 @@ public class OKEvent {
      * @param type The event type.
      */
     public OKEvent(final OnlyKey key, final OKEType type) {
-        this(key, type, false, new Exception(), "");
+        this(key, type, false, null, "");
     }
 
     /**
@@ -48,7 +91,7 @@ public class OKEvent {
      * @param boolVal The boolean value.
      */
     public OKEvent(final OnlyKey key, final OKEType type, final boolean boolVal) {
-        this(key, type, boolVal, new Exception(), "");
+        this(key, type, boolVal, null, "");
     }
 
     /**
@@ -59,7 +102,7 @@ public class OKEvent {
      * @param stringVal THe string value.
      */
     public OKEvent(final OnlyKey key, final OKEType type, final String stringVal) {
-        this(key, type, false, new Exception(), stringVal);
+        this(key, type, false, null, stringVal);
     }
 
     /**
@@ -67,11 +110,11 @@ public class OKEvent {
      *
      * @param type      The event type.
      * @param boolVal   The boolean value.
-     * @param e         The exception value.
+     * @param e         The exception value, null for all but error events.
      * @param stringVal The string value.
      */
-    private OKEvent(final OnlyKey key, final OKEType type, final boolean boolVal, final Exception e,
-                    final String stringVal) {
+    private OKEvent(final OnlyKey key, final OKEType type, final boolean boolVal,
+                    @Nullable final Exception e, final String stringVal) {
         this.key = key;
         this.type = type;
         this.boolVal = boolVal;
@@ -108,9 +151,11 @@ public class OKEvent {
     }
 
     /**
-     * @return The exception value.
+     * @return The exception value, or null if this is not an error event.
      */
-    public Exception getException() {
+    public
+    @Nullable
+    Exception getException() {
         return e;
     }
 }
@@ -0,0 +1,219 @@
+package to.crp.android.oktimeset;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Services the USB I/O of many {@link OnlyKey} sessions on a small, fixed set of threads.
+ * <p>
+ * A worker never polls a session on the off chance. Each session's transport signals its worker
+ * when a request completes (see {@link HidTransport#setCompletionSignal(Runnable)}); the worker
+ * handles the completions of the sessions signalled and parks while none is. An idle key costs
+ * nothing, and a completion is handled as soon as the worker is free, so write latency has no
+ * polling delay in it. Transports that can only block for completions, as USB can, share one
+ * waiter thread to hand them over, see {@link CompletionWaiter}; parsing, listeners and writes
+ * stay on the workers.
+ */
+class OKIoLoop {
+
+    /**
+     * Default number of worker threads.
+     */
+    static final int DEFAULT_WORKERS = 2;
+
+    private final Worker[] workers;
+
+    private volatile boolean shutdown = false;
+
+    /**
+     * Create an I/O loop and start its workers.
+     *
+     * @param workers The number of worker threads.
+     */
+    OKIoLoop(final int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Need at least one worker!");
+        }
+        this.workers = new Worker[workers];
+        for (int i = 0; i < workers; i++) {
+            final Worker w = new Worker();
+            this.workers[i] = w;
+            w.thread = new Thread(w, "onlyKeyIo-" + i);
+            w.thread.start();
+        }
+    }
+
+    /**
+     * Open a session and start servicing it. The session stops when it is cancelled or fails.
+     *
+     * @param key The session to service.
+     * @throws IOException Thrown on error opening the session.
+     */
+    void register(final OnlyKey key) throws IOException {
+        if (shutdown) {
+            throw new IOException("I/O loop is shut down!");
+        }
+        key.open();
+
+        Worker least = workers[0];
+        for (final Worker w : workers) {
+            if (w.slots.length < least.slots.length) {
+                least = w;
+            }
+        }
+        least.add(key);
+    }
+
+    /**
+     * Stop the workers and wait for them to close the sessions they still service.
+     *
+     * @param timeoutMs How long to wait for the workers in total, in milliseconds.
+     * @return Whether all workers finished in time.
+     */
+    boolean shutdown(final long timeoutMs) {
+        shutdown = true;
+        for (final Worker w : workers) {
+            w.cancel();
+            LockSupport.unpark(w.thread);
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        try {
+            for (final Worker w : workers) {
+                final long left = deadline - System.nanoTime();
+                if (left > 0) {
+                    TimeUnit.NANOSECONDS.timedJoin(w.thread, left);
+                }
+                if (w.thread.isAlive()) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * A session serviced by a worker, and the completion signal of its transport.
+     */
+    private static final class Slot implements Runnable {
+        private final OnlyKey key;
+        private final Thread worker;
+
+        /**
+         * Whether the session may have completions to handle. Set when signalled, cleared by the
+         * worker before it polls.
+         */
+        private final AtomicBoolean ready = new AtomicBoolean(true);
+
+        private Slot(final OnlyKey key, final Thread worker) {
+            this.key = key;
+            this.worker = worker;
+        }
+
+        @Override
+        public void run() {
+            if (!ready.getAndSet(true)) {
+                LockSupport.unpark(worker);
+            }
+        }
+    }
+
+    private static final class Worker extends RunnableImpl {
+
+        private Thread thread;
+
+        /**
+         * Sessions serviced by this worker. Replaced, never modified, so the worker can iterate
+         * it without locking or allocating.
+         */
+        private volatile Slot[] slots = new Slot[0];
+
+        private synchronized void add(final OnlyKey key) {
+            if (isCancelled()) {
+                key.close();
+                return;
+            }
+            final Slot[] next = new Slot[slots.length + 1];
+            System.arraycopy(slots, 0, next, 0, slots.length);
+            final Slot slot = new Slot(key, thread);
+            next[slots.length] = slot;
+            key.setServicer(thread);
+            key.setCompletionSignal(slot);
+            slots = next;
+            LockSupport.unpark(thread);
+        }
+
+        private synchronized void remove(final Slot slot) {
+            final Slot[] prev = slots;
+            for (int i = 0; i < prev.length; i++) {
+                if (prev[i] == slot) {
+                    final Slot[] next = new Slot[prev.length - 1];
+                    System.arraycopy(prev, 0, next, 0, i);
+                    System.arraycopy(prev, i + 1, next, i, next.length - i);
+                    slots = next;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        protected void runImpl() {
+            while (!isCancelledOrInterrupted()) {
+                boolean busy = false;
+                for (final Slot s : slots) {
+                    if (s.key.isCancelled() || s.key.isClosed()) {
+                        remove(s);
+                        s.key.close();
+                        continue;
+                    }
+                    if (!s.ready.getAndSet(false)) {
+                        continue;
+                    }
+
+                    try {
+                        if (s.key.poll(0)) {
+                            // more may have completed than one poll reaps
+                            s.ready.set(true);
+                            busy = true;
+                        }
+                    } catch (IOException ioe) {
+                        remove(s);
+                        s.key.fail(ioe);
+                    }
+                }
+
+                if (!busy && !isCancelledOrInterrupted() && !isReady()) {
+                    // a signal since the ready flags were read leaves a permit
+                    LockSupport.park(this);
+                }
+            }
+
+            synchronized (this) {
+                for (final Slot s : slots) {
+                    s.key.close();
+                }
+                slots = new Slot[0];
+            }
+        }
+
+        /**
+         * A listener or transport that blocked on the worker thread may have taken the permit a
+         * signal or {@link #cancel()} left, so the flags are checked again before parking.
+         *
+         * @return Whether any session has been signalled since its ready flag was cleared.
+         */
+        private boolean isReady() {
+            for (final Slot s : slots) {
+                if (s.ready.get()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package to.crp.android.oktimeset;
+
+import android.support.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the {@link OnlyKey} I/O paths, per device and across
+ * devices.
+ * <p>
+ * Recording is striped by writer rather than synchronised: every {@link Counters} and
+ * {@link Histogram} has a single writer (the thread servicing the device, or whoever holds the
+ * session lock), which updates it with a plain read and an ordered write. Recording therefore
+ * never contends with the reader or with other devices. Timing costs a pair of
+ * {@code System.nanoTime()} calls, several times what a status parse takes, so per-packet timers
+ * only time one in {@link Histogram#SAMPLE_EVERY} operations; counters are exact.
+ * {@link #snapshot()} may be called from any thread; it sees each value as of some recent write.
+ */
+class OKMetrics {
+
+    /**
+     * What is counted per device.
+     */
+    enum Counter {
+        PACKETS_RECEIVED,
+        BYTES_RECEIVED,
+        /**
+         * Packets received that were the same as the one before, and were not parsed.
+         */
+        PACKETS_SKIPPED,
+        PACKETS_SENT,
+        BYTES_SENT,
+        QUEUE_FAILURES,
+        REQUEUE_FAILURES
+    }
+
+    private static final Counter[] COUNTERS = Counter.values();
+
+    /**
+     * Histogram buckets: bucket {@code b} counts values below {@code 2^b} nanoseconds.
+     */
+    private static final int BUCKETS = 40;
+
+    private final List<Device> devices = new CopyOnWriteArrayList<>();
+
+    /**
+     * Totals of devices that have been retired.
+     */
+    private Snapshot retired = new Snapshot("retired");
+
+    /**
+     * Create a device recorder and include it in snapshots until it is retired.
+     *
+     * @param name The name to report the device under.
+     * @return The recorder.
+     */
+    Device register(final String name) {
+        final Device d = new Device(this, name);
+        devices.add(d);
+        return d;
+    }
+
+    /**
+     * Fold a device into the retired totals.
+     */
+    private synchronized void retire(final Device d) {
+        if (devices.remove(d)) {
+            retired = retired.merge(d.snapshot(), retired.name);
+        }
+    }
+
+    /**
+     * @return Snapshots of the registered devices, followed by the total over all devices ever
+     * registered.
+     */
+    synchronized List<Snapshot> snapshot() {
+        final List<Snapshot> out = new ArrayList<>();
+        Snapshot total = new Snapshot("total").merge(retired, "total");
+        for (final Device d : devices) {
+            final Snapshot s = d.snapshot();
+            out.add(s);
+            total = total.merge(s, "total");
+        }
+        out.add(total);
+        return out;
+    }
+
+    /**
+     * Write a snapshot.
+     *
+     * @param writer The writer.
+     */
+    void dump(final PrintWriter writer) {
+        for (final Snapshot s : snapshot()) {
+            s.dump(writer);
+        }
+    }
+
+    /**
+     * Recorder of one device.
+     */
+    static final class Device {
+
+        private final
+        @Nullable
+        OKMetrics registry;
+
+        private final String name;
+
+        /**
+         * Counters updated by the thread servicing the device.
+         */
+        final Counters io = new Counters();
+
+        /**
+         * Counters updated with the session lock held.
+         */
+        final Counters locked = new Counters();
+
+        /**
+         * Time spent waiting for a completed request, sampled.
+         */
+        final Histogram await = new Histogram();
+
+        /**
+         * Time spent finding the status in a received packet, sampled.
+         */
+        final Histogram parse = new Histogram();
+
+        /**
+         * Time spent notifying all listeners of an event.
+         */
+        final Histogram dispatch = new Histogram();
+
+        /**
+         * Time from queuing a write to handling its completion. Recorded with the session lock
+         * held.
+         */
+        final Histogram write = new Histogram();
+
+        /**
+         * Time spent notifying each listener, by listener class.
+         */
+        private final ConcurrentHashMap<String, Histogram> listeners = new ConcurrentHashMap<>();
+
+        /**
+         * Create a recorder that is not part of any registry.
+         */
+        Device() {
+            this(null, "unregistered");
+        }
+
+        private Device(@Nullable final OKMetrics registry, final String name) {
+            this.registry = registry;
+            this.name = name;
+        }
+
+        /**
+         * @param listener A listener of the device.
+         * @return The histogram to record the time spent notifying the listener in, shared by
+         * listeners of the same class.
+         */
+        Histogram listener(final OKListener listener) {
+            final String cls = listener.getClass().getName();
+            Histogram h = listeners.get(cls);
+            if (h == null) {
+                h = new Histogram();
+                final Histogram prev = listeners.putIfAbsent(cls, h);
+                if (prev != null) {
+                    h = prev;
+                }
+            }
+            return h;
+        }
+
+        /**
+         * Stop reporting the device on its own; its totals stay in the registry's total.
+         */
+        void retire() {
+            if (registry != null) {
+                registry.retire(this);
+            }
+        }
+
+        /**
+         * @return The device's values so far.
+         */
+        Snapshot snapshot() {
+            final long[] counters = new long[COUNTERS.length];
+            for (int c = 0; c < counters.length; c++) {
+                counters[c] = io.values.get(c) + locked.values.get(c);
+            }
+            final Map<String, Distribution> byListener = new TreeMap<>();
+            for (final Map.Entry<String, Histogram> e : listeners.entrySet()) {
+                byListener.put(e.getKey(), e.getValue().snapshot());
+            }
+            return new Snapshot(name, counters, await.snapshot(), parse.snapshot(),
+                    dispatch.snapshot(), write.snapshot(), byListener);
+        }
+    }
+
+    /**
+     * A set of counters with a single writer.
+     */
+    static final class Counters {
+
+        private final AtomicLongArray values = new AtomicLongArray(COUNTERS.length);
+
+        /**
+         * @param counter The counter.
+         * @param delta   The amount to add.
+         */
+        void add(final Counter counter, final long delta) {
+            final int i = counter.ordinal();
+            values.lazySet(i, values.get(i) + delta);
+        }
+    }
+
+    /**
+     * A log2 latency histogram with a single writer.
+     */
+    static final class Histogram {
+
+        /**
+         * Operations per timed operation for {@link #start()}. A power of two.
+         */
+        static final int SAMPLE_EVERY = 8;
+
+        private static final int COUNT = 0;
+        private static final int SUM = 1;
+        private static final int FIRST_BUCKET = 2;
+
+        private final AtomicLongArray cells = new AtomicLongArray(FIRST_BUCKET + BUCKETS);
+
+        private int ticks = 0;
+
+        /**
+         * Start timing an operation, if it is sampled.
+         *
+         * @return The start time to pass to {@link #stop(long)}, or 0 if not sampled.
+         */
+        long start() {
+            return (++ticks & (SAMPLE_EVERY - 1)) == 0 ? System.nanoTime() : 0;
+        }
+
+        /**
+         * Record an operation timed with {@link #start()}.
+         *
+         * @param start What {@link #start()} returned.
+         */
+        void stop(final long start) {
+            if (start != 0) {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * @param nanos The time to record, in nanoseconds.
+         */
+        void record(final long nanos) {
+            final int b = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+            cells.lazySet(COUNT, cells.get(COUNT) + 1);
+            cells.lazySet(SUM, cells.get(SUM) + nanos);
+            cells.lazySet(FIRST_BUCKET + b, cells.get(FIRST_BUCKET + b) + 1);
+        }
+
+        private Distribution snapshot() {
+            final long[] buckets = new long[BUCKETS];
+            for (int b = 0; b < BUCKETS; b++) {
+                buckets[b] = cells.get(FIRST_BUCKET + b);
+            }
+            return new Distribution(cells.get(COUNT), cells.get(SUM), buckets);
+        }
+    }
+
+    /**
+     * Immutable copy of a histogram.
+     */
+    static final class Distribution {
+
+        private final long count;
+        private final long sum;
+        private final long[] buckets;
+
+        private Distribution(final long count, final long sum, final long[] buckets) {
+            this.count = count;
+            this.sum = sum;
+            this.buckets = buckets;
+        }
+
+        /**
+         * @return The number of recorded values.
+         */
+        long getCount() {
+            return count;
+        }
+
+        /**
+         * @return The mean value in nanoseconds, or 0 if there is none.
+         */
+        long getMeanNanos() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * @param pct The percentile, 0 to 100.
+         * @return Upper bound of the bucket holding the percentile, in nanoseconds, or 0 if there
+         * are no values.
+         */
+        long getPercentileNanos(final double pct) {
+            long total = 0;
+            for (final long n : buckets) {
+                total += n;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(total * pct / 100.0));
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += buckets[b];
+                if (seen >= rank) {
+                    return 1L << b;
+                }
+            }
+            return 1L << (BUCKETS - 1);
+        }
+
+        private Distribution merge(final Distribution other) {
+            final long[] merged = new long[BUCKETS];
+            for (int b = 0; b < BUCKETS; b++) {
+                merged[b] = buckets[b] + other.buckets[b];
+            }
+            return new Distribution(count + other.count, sum + other.sum, merged);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "n %d  mean %.1f us  p50 %.1f us  p99 %.1f us",
+                    count, micros(getMeanNanos()), micros(getPercentileNanos(50)),
+                    micros(getPercentileNanos(99)));
+        }
+
+        private static double micros(final long nanos) {
+            return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+        }
+    }
+
+    private static final Distribution EMPTY = new Distribution(0, 0, new long[BUCKETS]);
+
+    /**
+     * Immutable values of one device, or of several devices added up.
+     */
+    static final class Snapshot {
+
+        private final String name;
+        private final long[] counters;
+        private final Distribution await;
+        private final Distribution parse;
+        private final Distribution dispatch;
+        private final Distribution write;
+        private final Map<String, Distribution> listeners;
+
+        private Snapshot(final String name) {
+            this(name, new long[COUNTERS.length], EMPTY, EMPTY, EMPTY, EMPTY,
+                    Collections.<String, Distribution>emptyMap());
+        }
+
+        private Snapshot(final String name, final long[] counters, final Distribution await,
+                         final Distribution parse, final Distribution dispatch,
+                         final Distribution write, final Map<String, Distribution> listeners) {
+            this.name = name;
+            this.counters = counters;
+            this.await = await;
+            this.parse = parse;
+            this.dispatch = dispatch;
+            this.write = write;
+            this.listeners = listeners;
+        }
+
+        /**
+         * @return The name of the device, or "total".
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @param counter The counter.
+         * @return Its value.
+         */
+        long get(final Counter counter) {
+            return counters[counter.ordinal()];
+        }
+
+        /**
+         * @return Time spent waiting for completed requests.
+         */
+        Distribution getAwait() {
+            return await;
+        }
+
+        /**
+         * @return Time spent finding the status in received packets.
+         */
+        Distribution getParse() {
+            return parse;
+        }
+
+        /**
+         * @return Time spent notifying all listeners of an event.
+         */
+        Distribution getDispatch() {
+            return dispatch;
+        }
+
+        /**
+         * @return Time from queuing writes to handling their completion.
+         */
+        Distribution getWrite() {
+            return write;
+        }
+
+        /**
+         * @return Time spent notifying each listener, by listener class.
+         */
+        Map<String, Distribution> getListeners() {
+            return Collections.unmodifiableMap(listeners);
+        }
+
+        private Snapshot merge(final Snapshot other, final String name) {
+            final long[] sums = new long[COUNTERS.length];
+            for (int c = 0; c < sums.length; c++) {
+                sums[c] = counters[c] + other.counters[c];
+            }
+            final Map<String, Distribution> byListener = new TreeMap<>(listeners);
+            for (final Map.Entry<String, Distribution> e : other.listeners.entrySet()) {
+                final Distribution prev = byListener.get(e.getKey());
+                byListener.put(e.getKey(), prev == null ? e.getValue() : prev.merge(e.getValue()));
+            }
+            return new Snapshot(name, sums, await.merge(other.await), parse.merge(other.parse),
+                    dispatch.merge(other.dispatch), write.merge(other.write), byListener);
+        }
+
+        private void dump(final PrintWriter writer) {
+            writer.println("OnlyKey metrics, " + name + ":");
+            for (final Counter c : COUNTERS) {
+                writer.println(String.format(Locale.US, "  %-20s %d", c.name(), get(c)));
+            }
+            writer.println("  await     " + await);
+            writer.println("  parse     " + parse);
+            writer.println("  dispatch  " + dispatch);
+            writer.println("  write     " + write);
+            for (final Map.Entry<String, Distribution> e : listeners.entrySet()) {
+                writer.println("    " + e.getKey() + "  " + e.getValue());
+            }
+        }
+    }
+}
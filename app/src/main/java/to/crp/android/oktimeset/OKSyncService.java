@@ -0,0 +1,658 @@
+package to.crp.android.oktimeset;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Sets the time on attached OnlyKeys without any UI but a notification.
+ * <p>
+ * {@link UsbAttachActivity} hands attached keys over with {@link #start(Context, Intent)}. Keys
+ * are taken through a {@link ProvisioningPipeline}, so a hub full of them is worked through in
+ * parallel, within the stage limits in {@code integers.xml}. The service runs in the foreground
+ * until every key has left the pipeline. An activity on screen may bind to it to be told of the
+ * events of all keys.
+ */
+public class OKSyncService extends Service implements OKListener {
+
+    /**
+     * Told on the main thread when keys are attached or detached, or what is known of them
+     * changes, see {@link #getKeys()}.
+     */
+    interface KeysListener {
+        void keysChanged();
+    }
+
+    private static final String TAG = "onlykey";
+
+    private static final String ACTION_ATTACHED = "to.crp.android.oktimeset.ATTACHED";
+    private static final String ACTION_USB_DETACHED =
+            "android.hardware.usb.action.USB_DEVICE_DETACHED";
+    private static final String ACTION_USB_PERMISSION = "to.crp.android.oktimeset.USB_PERMISSION";
+
+    /**
+     * When the attach intent was received, by {@link System#nanoTime()}, where the trace of the
+     * key starts once its attach has settled.
+     */
+    private static final String EXTRA_RECEIVED_NANOS = "to.crp.android.oktimeset.RECEIVED_NANOS";
+
+    private static final String CHANNEL_ID = "sync";
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * Debug builds capture USB traffic into this file in the app's files directory, for
+     * {@link PacketReplay}.
+     */
+    private static final String CAPTURE_FILE = "onlykey.cap";
+    private static final int CAPTURE_SLOTS = 4096;
+
+    /**
+     * Times each attached OnlyKey from attach to time set, across service restarts.
+     */
+    private static final LifecycleTrace trace = new LifecycleTrace(256);
+
+    /**
+     * I/O metrics of all OnlyKeys seen by the process.
+     */
+    private static final OKMetrics metrics = new OKMetrics();
+
+    private static final Comparator<KeyRow> BY_ID = new Comparator<KeyRow>() {
+        @Override
+        public int compare(final KeyRow a, final KeyRow b) {
+            return a.getId() < b.getId() ? -1 : a.getId() == b.getId() ? 0 : 1;
+        }
+    };
+
+    /**
+     * USB traffic capture, in debug builds. Null otherwise or if it could not be opened.
+     */
+    private static
+    @Nullable
+    PacketCapture capture = null;
+
+    /**
+     * Listeners of bound activities.
+     */
+    private final List<OKListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final List<KeysListener> keysListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Keys attached, by device id, from when their attach is passed on until they are detached.
+     * Looked up as the pipeline looks up its keys, without boxing the id.
+     */
+    private final DeviceRegistry<Attached> attached =
+            new DeviceRegistry<>(ProvisioningPipeline.REGISTRY_CAPACITY);
+
+    private final Runnable notifyKeysChanged = new Runnable() {
+        @Override
+        public void run() {
+            for (final KeysListener l : keysListeners) {
+                l.keysChanged();
+            }
+        }
+    };
+
+    private final IBinder binder = new LocalBinder();
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Runs tasks on the main looper, where the service takes the events of its keys.
+     */
+    private final Executor main = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            handler.post(command);
+        }
+    };
+
+    private UsbManager manager;
+
+    private NotificationManager notifications;
+
+    /**
+     * Services the USB I/O of all attached OnlyKeys.
+     */
+    private OKIoLoop ioLoop;
+
+    private ProvisioningPipeline<UsbDevice> pipeline;
+
+    /**
+     * Handles attach and detach events, in order, for {@link #filter}.
+     */
+    private ScheduledExecutorService events;
+
+    private AttachFilter<UsbDevice> filter;
+
+    /**
+     * Shows the permission dialogs of keys in {@link ProvisioningPipeline.Stage#PERMISSION} one
+     * at a time.
+     */
+    private UsbPermissions permissions;
+
+    private volatile String status;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(final Context context, final Intent intent) {
+            Log.d(TAG, "broadcast, action: " + intent);
+
+            final UsbDevice dev = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            if (dev == null) {
+                return;
+            }
+
+            if (ACTION_USB_PERMISSION.equalsIgnoreCase(intent.getAction())) {
+                final boolean granted =
+                        intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false);
+                Log.d(TAG, granted ? "Permission granted." : "Permission denied.");
+                permissions.onResult(dev, granted);
+            } else if (ACTION_USB_DETACHED.equalsIgnoreCase(intent.getAction())) {
+                Log.d(TAG, "OnlyKey detached.");
+                filter.detach(dev.getDeviceId(), dev);
+            }
+        }
+    };
+
+    /**
+     * Hand an attached OnlyKey to the service.
+     *
+     * @param context The context.
+     * @param attach  The USB attach intent.
+     */
+    static void start(final Context context, final Intent attach) {
+        final UsbDevice dev = attach.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+        if (dev == null) {
+            Log.e(TAG, "Attach intent without a device!");
+            return;
+        }
+        final Intent intent = new Intent(context, OKSyncService.class);
+        intent.setAction(ACTION_ATTACHED);
+        intent.putExtra(UsbManager.EXTRA_DEVICE, dev);
+        intent.putExtra(EXTRA_RECEIVED_NANOS, System.nanoTime());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.startForegroundService(intent);
+        } else {
+            context.startService(intent);
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        manager = (UsbManager) getSystemService(Context.USB_SERVICE);
+        notifications = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        ioLoop = new OKIoLoop(OKIoLoop.DEFAULT_WORKERS);
+        pipeline = new ProvisioningPipeline<>(host, ioLoop,
+                getResources().getInteger(R.integer.pipeline_permission),
+                getResources().getInteger(R.integer.pipeline_open),
+                getResources().getInteger(R.integer.pipeline_unlock),
+                getResources().getInteger(R.integer.pipeline_set_time),
+                getResources().getInteger(R.integer.pipeline_verify));
+        events = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(r, "onlyKeyAttach");
+            }
+        });
+        filter = new AttachFilter<>(sink, events);
+        permissions = new UsbPermissions(manager, PendingIntent.getBroadcast(
+                getApplicationContext(), 0, new Intent(ACTION_USB_PERMISSION), 0), answers);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            notifications.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.channel_sync), NotificationManager.IMPORTANCE_LOW));
+        }
+        status = getString(R.string.msg_ok_attached);
+        startForeground(NOTIFICATION_ID, buildNotification(status));
+
+        if (BuildConfig.DEBUG && capture == null) {
+            try {
+                capture = PacketCapture.open(new File(getFilesDir(), CAPTURE_FILE), CAPTURE_SLOTS);
+            } catch (IOException ioe) {
+                Log.w(TAG, "Not capturing USB traffic.", ioe);
+            }
+        }
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(ACTION_USB_DETACHED);
+        filter.addAction(ACTION_USB_PERMISSION);
+        registerReceiver(receiver, filter);
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, final int flags, final int startId) {
+        if (intent != null && ACTION_ATTACHED.equals(intent.getAction())) {
+            final UsbDevice dev = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            Log.d(TAG, "OnlyKey attached.");
+            setStatus(getString(R.string.msg_ok_attached));
+            filter.attach(dev.getDeviceId(), dev,
+                    intent.getLongExtra(EXTRA_RECEIVED_NANOS, System.nanoTime()));
+        } else {
+            stopIfIdle();
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        unregisterReceiver(receiver);
+        handler.removeCallbacksAndMessages(null);
+        events.shutdownNow();
+        pipeline.close();
+        if (!ioLoop.shutdown(OnlyKey.STOP_TIMEOUT_MS)) {
+            Log.w(TAG, "I/O loop did not stop in time.");
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(final Intent intent) {
+        return binder;
+    }
+
+    /**
+     * Adds the keys in the pipeline, the lifecycle summary and I/O metrics, see
+     * {@code adb shell dumpsys activity service to.crp.android.oktimeset/.OKSyncService}.
+     */
+    @Override
+    protected void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+        pipeline.dump(writer);
+        writer.println("Permission dialogs queued: " + permissions.getQueued());
+        trace.dump(writer);
+        metrics.dump(writer);
+    }
+
+    /**
+     * Binder handing the service to activities in this process.
+     */
+    class LocalBinder extends Binder {
+        OKSyncService getService() {
+            return OKSyncService.this;
+        }
+    }
+
+    /**
+     * Add a listener to be notified of the events of all OnlyKeys, on the main thread.
+     *
+     * @param listener The listener to add.
+     */
+    void addListener(final OKListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener The listener to remove.
+     */
+    void removeListener(final OKListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Add a listener to be told when the attached keys change.
+     *
+     * @param listener The listener to add.
+     */
+    void addKeysListener(final KeysListener listener) {
+        keysListeners.add(listener);
+    }
+
+    /**
+     * @param listener The listener to remove.
+     */
+    void removeKeysListener(final KeysListener listener) {
+        keysListeners.remove(listener);
+    }
+
+    /**
+     * @return The attached keys in device id order, as of some point during the call.
+     */
+    List<KeyRow> getKeys() {
+        final List<Attached> all = attached.values();
+        final List<KeyRow> rows = new ArrayList<>(all.size());
+        for (final Attached a : all) {
+            rows.add(a.row());
+        }
+        Collections.sort(rows, BY_ID);
+        return rows;
+    }
+
+    /**
+     * Tell keys listeners, on the main thread.
+     */
+    private void keysChanged() {
+        handler.post(notifyKeysChanged);
+    }
+
+    /**
+     * @param device A device.
+     * @return The attached key of the device, or null if it is no longer attached.
+     */
+    @Nullable
+    private Attached attached(final UsbDevice device) {
+        final Attached a = attached.get(device.getDeviceId());
+        // the id may have been taken by a device attached since
+        return a != null && a.device == device ? a : null;
+    }
+
+    /**
+     * @return The message last shown in the notification.
+     */
+    String getStatus() {
+        return status;
+    }
+
+    /**
+     * @return Whether every key handed to the service has been dropped as a bounce or repeat, or
+     * has left the pipeline.
+     */
+    boolean isIdle() {
+        return filter.getPending() == 0 && pipeline.getFinished() == pipeline.getAdmitted();
+    }
+
+    /**
+     * Hands cleaned up attach and detach events to the pipeline.
+     */
+    private final AttachFilter.Sink<UsbDevice> sink = new AttachFilter.Sink<UsbDevice>() {
+        @Override
+        public void attached(final UsbDevice device, final long reportedNanos) {
+            // only now, so a bounce or a repeat of the attach never replaces a running span
+            final Attached a = new Attached(device,
+                    trace.begin(device.getDeviceId(), reportedNanos));
+            Attached at;
+            // a key still shown under the id was detached unseen: the new one takes its place
+            while ((at = attached.putIfAbsent(a)) != a && at != null) {
+                at.close();
+            }
+            keysChanged();
+            pipeline.add(device);
+        }
+
+        @Override
+        public void detached(final UsbDevice device) {
+            final Attached a = attached.get(device.getDeviceId());
+            if (a != null) {
+                a.close();
+                attached.remove(a);
+            }
+            keysChanged();
+            pipeline.remove(device);
+        }
+
+        @Override
+        public void dropped(final UsbDevice device) {
+            Log.d(TAG, "Dropped attach of " + device.getDeviceName() + ".");
+            stopIfIdle();
+        }
+    };
+
+    /**
+     * Hands permission answers to the pipeline.
+     */
+    private final UsbPermissions.Callback answers = new UsbPermissions.Callback() {
+        @Override
+        public void answered(final UsbDevice device, final boolean granted) {
+            if (granted) {
+                trace.mark(device.getDeviceId(), LifecycleTrace.Phase.PERMISSION_GRANTED);
+            }
+            pipeline.permitted(device, granted);
+        }
+    };
+
+    /**
+     * The platform side of the pipeline. The pipeline calls it on whichever thread moved a key
+     * along, often an I/O worker, so the callbacks that call into the system, by binder, are
+     * posted to the main thread.
+     */
+    private final ProvisioningPipeline.Host<UsbDevice> host =
+            new ProvisioningPipeline.Host<UsbDevice>() {
+                @Override
+                public int getId(final UsbDevice device) {
+                    return device.getDeviceId();
+                }
+
+                @Override
+                public void requestPermission(final UsbDevice dev) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            permissions.request(dev);
+                        }
+                    });
+                }
+
+                @Override
+                public OnlyKey open(final UsbDevice device) throws IOException {
+                    HidTransport transport = UsbHidTransport.open(device, manager);
+                    if (capture != null) {
+                        transport =
+                                new RecordingTransport(transport, capture, device.getDeviceId());
+                    }
+                    final OnlyKey k = new OnlyKey(transport);
+                    trace.mark(device.getDeviceId(), LifecycleTrace.Phase.DEVICE_OPENED);
+                    k.setTrace(trace.get(device.getDeviceId()));
+                    k.setMetrics(metrics.register(device.getDeviceName()));
+                    k.addListener(OKSyncService.this, main, ListenerQueue.Overflow.COALESCE);
+                    final Attached a = attached(device);
+                    if (a != null) {
+                        a.key = k;
+                        keysChanged();
+                    }
+                    return k;
+                }
+
+                @Override
+                public void finished(final UsbDevice device,
+                                     final ProvisioningPipeline.Outcome outcome) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onFinished(device, outcome);
+                        }
+                    });
+                }
+
+                @Override
+                public void idle() {
+                    stopIfIdle();
+                }
+            };
+
+    /**
+     * A key has left the pipeline. Called on the main thread.
+     *
+     * @param device  The device.
+     * @param outcome How it left.
+     */
+    private void onFinished(final UsbDevice device, final ProvisioningPipeline.Outcome outcome) {
+        Log.d(TAG, "OnlyKey done: " + outcome);
+        permissions.cancel(device);
+        final Attached a = attached(device);
+        if (a != null) {
+            a.outcome = outcome;
+            keysChanged();
+        }
+        switch (outcome) {
+            case DENIED:
+                trace.abandon(device.getDeviceId());
+                setStatus(getString(R.string.msg_perm_denied));
+                break;
+            case DETACHED:
+                trace.abandon(device.getDeviceId());
+                setStatus(getString(R.string.msg_ok_detached));
+                break;
+            case FAILED:
+                trace.abandon(device.getDeviceId());
+                break;
+        }
+        final int admitted = pipeline.getAdmitted();
+        if (admitted > 1) {
+            setStatus(getString(R.string.msg_fleet_progress,
+                    pipeline.getFinished(), admitted));
+        }
+    }
+
+    /**
+     * Stop the service if every key has left the pipeline, leaving the last status in the
+     * notification.
+     */
+    private void stopIfIdle() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isIdle()) {
+                    Log.d(TAG, "Closing.");
+                    stopForeground(false);
+                    stopSelf();
+                }
+            }
+        });
+    }
+
+    /**
+     * Show a message in the notification.
+     *
+     * @param msg The message.
+     */
+    private void setStatus(final String msg) {
+        status = msg;
+        notifications.notify(NOTIFICATION_ID, buildNotification(msg));
+    }
+
+    private Notification buildNotification(final String msg) {
+        final Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            builder = new Notification.Builder(this, CHANNEL_ID);
+        } else {
+            builder = new Notification.Builder(this);
+        }
+        return builder.setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(msg)
+                .setOnlyAlertOnce(true)
+                .setContentIntent(PendingIntent.getActivity(this, 0,
+                        new Intent(this, MainActivity.class), 0))
+                .build();
+    }
+
+    @Override
+    public void okError(final OKEvent event) {
+        final Exception e = event.getException();
+        Log.e(TAG, e.getMessage(), e);
+        setStatus("Error: " + e.getMessage());
+        keysChanged();
+        for (final OKListener l : listeners) {
+            l.okError(event);
+        }
+    }
+
+    @Override
+    public void okMessage(final OKEvent event) {
+        setStatus(event.getStringVal());
+        keysChanged();
+        for (final OKListener l : listeners) {
+            l.okMessage(event);
+        }
+    }
+
+    @Override
+    public void okSetInitialized(final OKEvent event) {
+        final String msg = event.getBoolVal() ?
+                getString(R.string.msg_waiting_for_unlock) : getString(R.string.msg_setup_required);
+        Log.d(TAG, msg);
+        setStatus(msg);
+        keysChanged();
+        for (final OKListener l : listeners) {
+            l.okSetInitialized(event);
+        }
+    }
+
+    @Override
+    public void okSetLocked(final OKEvent event) {
+        final boolean locked = event.getBoolVal();
+        final String msg = locked ?
+                getString(R.string.msg_dev_locked) : getString(R.string.msg_dev_unlocked);
+        Log.d(TAG, msg);
+        setStatus(msg);
+        keysChanged();
+        for (final OKListener l : listeners) {
+            l.okSetLocked(event);
+        }
+    }
+
+    @Override
+    public void okSetTime(final OKEvent event) {
+        final TimeSync.Result sync = event.getKey().getLastSync();
+        if (sync != null) {
+            Log.d(TAG, "Time synced: " + sync);
+        }
+        setStatus(getString(R.string.msg_set_time));
+        keysChanged();
+        for (final OKListener l : listeners) {
+            l.okSetTime(event);
+        }
+    }
+
+    /**
+     * An attached key, as the dashboard sees it.
+     */
+    private static final class Attached extends DeviceRegistry.Entry {
+
+        private final UsbDevice device;
+
+        private final
+        @Nullable
+        LifecycleTrace.Span span;
+
+        private volatile
+        @Nullable
+        OnlyKey key = null;
+
+        private volatile
+        @Nullable
+        ProvisioningPipeline.Outcome outcome = null;
+
+        private Attached(final UsbDevice device, @Nullable final LifecycleTrace.Span span) {
+            super(device.getDeviceId());
+            this.device = device;
+            this.span = span;
+        }
+
+        private KeyRow row() {
+            final OnlyKey k = key;
+            return new KeyRow(device.getDeviceId(), device.getDeviceName(),
+                    k == null ? 0 : k.getState(), outcome, k == null ? null : k.getLastSync(),
+                    span == null ? -1 : span.getTotalNanos());
+        }
+    }
+}
@@ -1,292 +1,1037 @@
 package to.crp.android.oktimeset;
 
-import android.hardware.usb.UsbConstants;
-import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbEndpoint;
-import android.hardware.usb.UsbInterface;
-import android.hardware.usb.UsbManager;
-import android.hardware.usb.UsbRequest;
 import android.support.annotation.Nullable;
-import android.util.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Class representing an attached OnlyKey.
+ * <p>
+ * A key is a session state machine over a {@link HidTransport}: {@link #open()} queues its IN
+ * requests, {@link #poll(long)} handles whatever has completed since, and {@link #close()}
+ * releases everything. The protocol code does not depend on the Android framework. Sessions are
+ * normally driven by an {@link OKIoLoop}; {@link #run()} drives one on a dedicated thread.
+ * {@link #stop(long)} tears a session down from any thread within a bounded time.
  */
 class OnlyKey extends RunnableImpl {
 
     private static final String TAG = "onlykeykey";
 
-    private static final int OK_HID_INTERFACE = 1;
+    /**
+     * OnlyKey message header.
+     */
+    static final byte[] header = new byte[]{(byte) 255, (byte) 255, (byte) 255, (byte) 255};
 
-    private static final int OK_INT_IN = 0;
-    private static final int OK_INT_OUT = 1;
+    static final byte MSG_SET_TIME = (byte) 228;
 
     /**
-     * OnlyKey message header.
+     * Offset of the time, 4 bytes big endian, in a set time frame.
+     */
+    private static final int TIME_OFFSET = 5;
+
+    /**
+     * {@link Message#second} of a set time frame that takes the time it is written.
+     */
+    private static final long NOW = -1;
+
+    private static final int STATUS_UNINITIALIZED = 0;
+    private static final int STATUS_INITIALIZED = 1;
+    private static final int STATUS_UNLOCKED = 2;
+    private static final int STATUS_LOCKED = 3;
+
+    /**
+     * Status tokens reported by the OnlyKey, in precedence order.
+     */
+    private static final StatusMatcher status = new StatusMatcher();
+
+    static {
+        status.addToken("UNINITIALIZED", STATUS_UNINITIALIZED);
+        status.addToken("INITIALIZED", STATUS_INITIALIZED);
+        status.addToken("UNLOCKED", STATUS_UNLOCKED);
+        status.addToken("LOCKED", STATUS_LOCKED);
+    }
+
+    /**
+     * Default number of IN requests kept queued on the interrupt endpoint.
+     */
+    static final int DEFAULT_IN_FLIGHT = 4;
+
+    /**
+     * Default time {@link #stop(long)} waits for the servicing thread before closing the session
+     * itself.
+     */
+    static final long STOP_TIMEOUT_MS = 50;
+
+    private static final OKEvent.OKEType[] TYPES = OKEvent.OKEType.values();
+
+    /**
+     * Every listener added, guarding itself and the building of {@link #byType}.
      */
-    private static final byte[] header = new byte[]{(byte) 255, (byte) 255, (byte) 255, (byte) 255};
+    private final List<Subscriber> listeners = new ArrayList<>();
 
-    private static final byte MSG_SET_TIME = (byte) 228;
+    /**
+     * The listeners of each event type, by type ordinal. Rebuilt whole when a listener is added,
+     * so notifying reads one array and nothing else.
+     */
+    private volatile Subscriber[][] byType = new Subscriber[TYPES.length][0];
 
-    private List<OKListener> listeners = new CopyOnWriteArrayList<>();
+    private final HidTransport transport;
 
-    private final UsbDeviceConnection conn;
-    private final UsbEndpoint epIn;
-    private final UsbEndpoint epOut;
+    /**
+     * Number of IN requests kept queued.
+     */
+    private final int inFlight;
 
+    /**
+     * The IN requests, each with its direct buffer as client data. Null until opened.
+     */
     private
     @Nullable
-    Boolean initialized = null;
+    HidTransport.Request[] inRequests = null;
+
+    /**
+     * Copy of the last received packet.
+     */
     private
     @Nullable
-    Boolean locked = null;
+    byte[] packet = null;
+
+    /**
+     * The whole big endian words of {@link #packet}, to tell a repeat of it by. Null until
+     * opened.
+     */
+    private
+    @Nullable
+    long[] packetWords = null;
+
+    /**
+     * Messages waiting to be written. Also guards the OUT request and {@link #state}.
+     */
+    private final Queue<Message> pending = new ArrayDeque<>();
+
+    private
+    @Nullable
+    HidTransport.Request outRequest = null;
+    private
+    @Nullable
+    ByteBuffer outBuffer = null;
+
+    /**
+     * Set time frame, only the time is patched in before each write. Null until opened.
+     */
+    private
+    @Nullable
+    ByteBuffer timeFrame = null;
+
+    /**
+     * Whether the OUT request is queued.
+     */
+    private boolean outBusy = false;
+
+    /**
+     * Moving average of the time from queuing a write to handling its completion, or -1 until a
+     * write has completed.
+     */
+    private volatile long outLatencyNanos = -1;
+
+    /**
+     * Outcome of the last precision sync, or null.
+     */
+    private volatile
+    @Nullable
+    TimeSync.Result lastSync = null;
+
+    private static final int NEW = 0;
+    private static final int OPEN = 1;
+    private static final int CLOSED = 2;
+
+    private int state = NEW;
+
+    /**
+     * Released once the session is closed.
+     */
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    /**
+     * The thread servicing the session, woken by {@link #stop(long)}.
+     */
+    private volatile
+    @Nullable
+    Thread servicer = null;
+
+    /**
+     * The completion signal set on the transport, or null.
+     */
+    private volatile
+    @Nullable
+    Runnable signal = null;
+
+    /**
+     * An error met off the servicing thread, for it to fail the session with, or null.
+     */
+    private volatile
+    @Nullable
+    IOException failure = null;
+
+    /**
+     * Events for state changes, created once per key as they carry no per-change data.
+     */
+    private final OKEvent evInitialized =
+            new OKEvent(this, OKEvent.OKEType.SET_INITIALIZED, true);
+    private final OKEvent evUninitialized =
+            new OKEvent(this, OKEvent.OKEType.SET_INITIALIZED, false);
+    private final OKEvent evLocked = new OKEvent(this, OKEvent.OKEType.SET_LOCKED, true);
+    private final OKEvent evUnlocked = new OKEvent(this, OKEvent.OKEType.SET_LOCKED, false);
+    private final OKEvent evTimeSet = new OKEvent(this, OKEvent.OKEType.SET_TIME);
+
+    /**
+     * Messages for {@link #setTime()} and the latency probe of {@link #syncTime()}, reused as
+     * their time is only taken when they are written.
+     */
+    private final Message timeMessage = new Message(null, NOW, evTimeSet, null, false);
+    private final Message probeMessage = new Message(null, NOW, null, null, true);
+
+    /**
+     * The time written to the OnlyKey.
+     */
+    private OKClock clock = OKClock.SYSTEM;
+
+    /**
+     * Times this key's way to having its clock set, or null.
+     */
+    private
+    @Nullable
+    LifecycleTrace.Span trace = null;
+
+    /**
+     * Where this key's I/O is measured. Not part of any registry unless set.
+     */
+    private OKMetrics.Device metrics = new OKMetrics.Device();
+
+    /**
+     * Protocol state word, laid out by {@link KeyState}. Changed only by compare-and-set, so each
+     * change is made, and notified, once.
+     */
+    private final AtomicInteger protocol = new AtomicInteger(0);
+
+    /**
+     * Create a new OnlyKey.
+     *
+     * @param transport The transport to the device.
+     */
+    public OnlyKey(final HidTransport transport) {
+        this(transport, DEFAULT_IN_FLIGHT);
+    }
 
     /**
      * Create a new OnlyKey.
      *
-     * @param conn  The USB device connection.
-     * @param epIn  The IN USB endpoint.
-     * @param epOut The OUT USB endpoint.
+     * @param transport The transport to the device.
+     * @param inFlight  The number of IN requests to keep queued.
      */
-    public OnlyKey(final UsbDeviceConnection conn, final UsbEndpoint epIn, final UsbEndpoint epOut) {
-        this.conn = conn;
-        this.epIn = epIn;
-        this.epOut = epOut;
+    public OnlyKey(final HidTransport transport, final int inFlight) {
+        if (inFlight < 1) {
+            throw new IllegalArgumentException("Need at least one IN request in flight!");
+        }
+        this.transport = transport;
+        this.inFlight = inFlight;
     }
 
     /**
-     * Add a listener to be notified of OnlyKey events.
+     * Set the span to record the lifecycle phases of this key in. Call before opening.
+     *
+     * @param trace The span, or null.
+     */
+    void setTrace(@Nullable final LifecycleTrace.Span trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Set where to measure this key's I/O. Call before adding listeners and opening.
+     *
+     * @param metrics The device recorder.
+     */
+    void setMetrics(final OKMetrics.Device metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set the clock to take the time written to the OnlyKey from. Call before opening.
+     *
+     * @param clock The clock.
+     */
+    void setClock(final OKClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @return The clock the time written to the OnlyKey is taken from.
+     */
+    OKClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Add a listener to be notified of OnlyKey events on the thread servicing the key. It must
+     * return quickly, as the key is not serviced until it does.
      *
      * @param listener The listener to add.
      */
     public void addListener(final OKListener listener) {
-        listeners.add(listener);
+        addListener(listener, EnumSet.allOf(OKEvent.OKEType.class));
     }
 
     /**
-     * Notify listeners on OnlyKey event.
+     * Add a listener to be notified of some types of OnlyKey events on the thread servicing the
+     * key. It must return quickly, as the key is not serviced until it does.
      *
-     * @param event The event object.
+     * @param listener The listener to add.
+     * @param types    The event types to notify it of.
      */
-    private void notifyListeners(final OKEvent event) {
-        for (final OKListener l : listeners) {
-            switch (event.getType()) {
-                case ERROR:
-                    l.okError(event);
-                    break;
-                case SET_INITIALIZED:
-                    l.okSetInitialized(event);
-                    break;
-                case SET_LOCKED:
-                    l.okSetLocked(event);
-                    break;
-                case SET_TIME:
-                    l.okSetTime(event);
-                    break;
-                case MSG:
-                    l.okMessage(event);
-                    break;
-                default:
-                    throw new RuntimeException("Unknown event type!");
+    public void addListener(final OKListener listener, final Set<OKEvent.OKEType> types) {
+        subscribe(new Subscriber(listener, types, metrics.listener(listener)));
+    }
+
+    /**
+     * Add a listener to be notified of OnlyKey events on an executor. The thread servicing the
+     * key only queues events for it, see {@link ListenerQueue}, so the listener may take as long
+     * as it likes.
+     *
+     * @param listener The listener to add.
+     * @param executor Where to notify it.
+     * @param overflow What to do with events when it falls behind.
+     */
+    public void addListener(final OKListener listener, final Executor executor,
+                            final ListenerQueue.Overflow overflow) {
+        addListener(listener, executor, overflow, EnumSet.allOf(OKEvent.OKEType.class));
+    }
+
+    /**
+     * Add a listener to be notified of some types of OnlyKey events on an executor, see
+     * {@link #addListener(OKListener, Executor, ListenerQueue.Overflow)}. Only events of those
+     * types are queued.
+     *
+     * @param listener The listener to add.
+     * @param executor Where to notify it.
+     * @param overflow What to do with events when it falls behind.
+     * @param types    The event types to notify it of.
+     */
+    public void addListener(final OKListener listener, final Executor executor,
+                            final ListenerQueue.Overflow overflow,
+                            final Set<OKEvent.OKEType> types) {
+        subscribe(new Subscriber(new ListenerQueue(listener, executor,
+                ListenerQueue.DEFAULT_CAPACITY, overflow), types, metrics.listener(listener)));
+    }
+
+    /**
+     * Add a subscriber and rebuild {@link #byType}.
+     *
+     * @param subscriber The subscriber.
+     */
+    private void subscribe(final Subscriber subscriber) {
+        synchronized (listeners) {
+            listeners.add(subscriber);
+            final Subscriber[][] table = new Subscriber[TYPES.length][];
+            for (final OKEvent.OKEType type : TYPES) {
+                final List<Subscriber> subs = new ArrayList<>();
+                for (final Subscriber s : listeners) {
+                    if (s.types.contains(type)) {
+                        subs.add(s);
+                    }
+                }
+                table[type.ordinal()] = subs.toArray(new Subscriber[subs.size()]);
             }
+            byType = table;
         }
     }
 
     /**
-     * Get a new {@link OnlyKey}.
+     * Notify the listeners of an event's type.
      *
-     * @param device  The OnlyKey USB device.
-     * @param manager The USBManager.
-     * @throws IOException Thrown on error configuring the OnlyKey USB device.
+     * @param event The event object.
      */
-    public static OnlyKey getOnlyKey(final UsbDevice device, final UsbManager manager)
-            throws IOException {
-        // get interface
-        if (device.getInterfaceCount() < OnlyKey.OK_HID_INTERFACE) {
-            throw new IOException("USB device does not have any interfaces!");
+    void notifyListeners(final OKEvent event) {
+        final OKEvent.OKEType type = event.getType();
+        final long start = System.nanoTime();
+        long t = start;
+        for (final Subscriber s : byType[type.ordinal()]) {
+            type.deliver(s.listener, event);
+            final long now = System.nanoTime();
+            s.dispatch.record(now - t);
+            t = now;
         }
-        final UsbInterface intf = device.getInterface(OnlyKey.OK_HID_INTERFACE);
+        metrics.dispatch.record(t - start);
+    }
 
-        // get input endpoint
-        if (intf.getEndpointCount() < Math.max(OnlyKey.OK_INT_IN, OnlyKey.OK_INT_OUT)) {
-            throw new IOException("Interface doesn't have two endpoints!");
+    /**
+     * Set up the session: {@link #inFlight} IN requests, each with its own direct buffer, are
+     * queued on the interrupt endpoint, and a single OUT request and buffer are prepared for
+     * writes. They are reused for the whole session, so the steady state does not allocate.
+     *
+     * @throws IOException Thrown on error setting up the requests.
+     */
+    void open() throws IOException {
+        synchronized (pending) {
+            if (state != NEW) {
+                throw new IOException("OnlyKey session already opened!");
+            }
+            state = OPEN;
+
+            final int packetSize = transport.getInPacketSize();
+            packet = new byte[packetSize];
+            packetWords = new long[packetSize / 8];
+            inRequests = new HidTransport.Request[inFlight];
+            for (int i = 0; i < inFlight; i++) {
+                final HidTransport.Request in = transport.newRequest(true);
+                inRequests[i] = in;
+                final ByteBuffer buffer = ByteBuffer.allocateDirect(packetSize);
+                in.setClientData(buffer);
+                if (!in.queue(buffer, packetSize)) {
+                    metrics.locked.add(OKMetrics.Counter.QUEUE_FAILURES, 1);
+                    throw new IOException("Error queuing request!");
+                }
+            }
+
+            outRequest = transport.newRequest(false);
+            outBuffer = ByteBuffer.allocateDirect(transport.getOutPacketSize());
+            timeFrame = newTimeFrame(transport.getOutPacketSize());
         }
-        final UsbEndpoint epIn = intf.getEndpoint(OnlyKey.OK_INT_IN);
-        if (epIn.getType() != UsbConstants.USB_ENDPOINT_XFER_INT) {
-            throw new IOException("Endpoint is not type INTERRUPT!");
+    }
+
+    /**
+     * Watch for messages sent from the OnlyKey on the calling thread until cancelled, blocking
+     * for each completion. Used to give a session a thread of its own rather than an
+     * {@link OKIoLoop}.
+     */
+    @Override
+    protected void runImpl() {
+        setServicer(getThread());
+        try {
+            while (!isCancelledOrInterrupted()) {
+                poll(HidTransport.WAIT_FOREVER);
+            }
+        } catch (IOException ioe) {
+            if (!isCancelled()) {
+                fail(ioe);
+            }
+        } finally {
+            close();
         }
-        //Log.d(TAG, "IN Endpoint: " + epIn.getEndpointNumber() + ", address: " + epIn.getAddress() +
-        //        " Direction: " + (epIn.getDirection() == UsbConstants.USB_DIR_IN ? "In" : "Out"));
+    }
 
-        // get output endpoint
-        final UsbEndpoint epOut = intf.getEndpoint(OnlyKey.OK_INT_OUT);
-        if (epOut.getType() != UsbConstants.USB_ENDPOINT_XFER_INT) {
-            throw new IOException("Endpoint is not type INTERRUPT");
+    /**
+     * @param servicer The thread servicing the session, to be woken by {@link #stop(long)}.
+     */
+    void setServicer(@Nullable final Thread servicer) {
+        this.servicer = servicer;
+    }
+
+    /**
+     * Handle completed requests. Completed IN requests are copied out and re-queued before their
+     * packet is processed, so the endpoint is never left without a pending request. Completion of
+     * the OUT request starts the next pending write.
+     *
+     * @param timeoutMs How long to wait for a completion in milliseconds, 0 to return at once if
+     *                  there is none, or {@link HidTransport#WAIT_FOREVER}, as supported by the
+     *                  transport, see {@link HidTransport#await(long)}.
+     * @return Whether any request completed.
+     * @throws IOException Thrown on error receiving or sending data.
+     */
+    boolean poll(final long timeoutMs) throws IOException {
+        final IOException f = failure;
+        if (f != null) {
+            throw f;
         }
-        //Log.d(TAG, "OUT Endpoint: " + epOut.getEndpointNumber() + ", address: " + epOut.getAddress() +
-        //        " Direction: " + (epOut.getDirection() == UsbConstants.USB_DIR_IN ? "In" : "Out"));
 
-        // get connection
-        final UsbDeviceConnection connection = manager.openDevice(device);
-        if (connection == null) {
-            throw new IOException("Could not open connection to USB device!");
+        HidTransport.Request r = await(timeoutMs);
+        if (r == null) {
+            return false;
+        }
+        if (timeoutMs == HidTransport.WAIT_FOREVER) {
+            handle(r);
+            return true;
         }
-        Log.d(TAG, "Opened USB connection.");
-        connection.claimInterface(intf, true);
 
-        return new OnlyKey(connection, epIn, epOut);
+        // reap what has piled up, but leave the thread to other sessions eventually
+        int budget = inFlight + 1;
+        do {
+            handle(r);
+        } while (--budget > 0 && (r = await(0)) != null);
+        return true;
     }
 
     /**
-     * Watch for messages sent from the OnlyKey.
+     * Wait for a completed request, sampling the time spent.
      */
-    @Override
-    public void run() {
+    @Nullable
+    private HidTransport.Request await(final long timeoutMs) throws IOException {
+        final long start = metrics.await.start();
         try {
-            while (!isCancelledOrInterrupted()) {
-                final UsbRequest in = new UsbRequest();
-                in.initialize(conn, epIn);
-                final ByteBuffer buffer = ByteBuffer.allocate(epIn.getMaxPacketSize());
+            return transport.await(timeoutMs);
+        } finally {
+            metrics.await.stop(start);
+        }
+    }
 
-                if (!in.queue(buffer, epIn.getMaxPacketSize()) && !isCancelledOrInterrupted()) {
-                    throw new IOException("Error queuing request!");
+    /**
+     * Handle a completed request.
+     *
+     * @param r The request.
+     * @throws IOException Thrown on error re-queuing a request.
+     */
+    private void handle(final HidTransport.Request r) throws IOException {
+        if (isCancelled()) {
+            // possibly cancelled by stop(), nothing to do but close
+            return;
+        }
+
+        final Object tag = r.getClientData();
+        if (tag instanceof Message) {
+            sent((Message) tag);
+        } else if (tag instanceof ByteBuffer) {
+            final byte[] packet = this.packet;
+            final ByteBuffer buffer = (ByteBuffer) tag;
+            final boolean repeat = isRepeat(buffer);
+            if (!repeat) {
+                buffer.clear();
+                buffer.get(packet, 0, packet.length);
+            }
+            metrics.io.add(OKMetrics.Counter.PACKETS_RECEIVED, 1);
+            metrics.io.add(OKMetrics.Counter.BYTES_RECEIVED, packet.length);
+
+            if (!r.queue(buffer, packet.length)) {
+                metrics.io.add(OKMetrics.Counter.REQUEUE_FAILURES, 1);
+                throw new IOException("Error queuing request!");
+            }
+
+            if (trace != null) {
+                trace.mark(LifecycleTrace.Phase.FIRST_STATUS);
+            }
+            if (repeat) {
+                // parsing it again could change nothing
+                metrics.io.add(OKMetrics.Counter.PACKETS_SKIPPED, 1);
+            } else {
+                processReceived(packet);
+            }
+        } else {
+            throw new IOException("Received response not queued?");
+        }
+    }
+
+    /**
+     * Compare a received packet with the last one, a word at a time, and remember its words if
+     * it differs. The OnlyKey repeats its status report while it waits, so most packets are
+     * repeats, told apart from the last one in {@code packetSize / 8} reads.
+     *
+     * @param buffer The buffer the packet was received in.
+     * @return Whether the packet is the same as the last one.
+     */
+    private boolean isRepeat(final ByteBuffer buffer) {
+        final long[] words = packetWords;
+        final byte[] packet = this.packet;
+        final int n = words.length;
+        int i = 0;
+        while (i < n && buffer.getLong(i << 3) == words[i]) {
+            i++;
+        }
+        if (i == n) {
+            int b = n << 3;
+            while (b < packet.length && buffer.get(b) == packet[b]) {
+                b++;
+            }
+            if (b == packet.length) {
+                return true;
+            }
+        }
+        for (; i < n; i++) {
+            words[i] = buffer.getLong(i << 3);
+        }
+        return false;
+    }
+
+    /**
+     * Close the session, releasing its requests and the transport.
+     */
+    void close() {
+        synchronized (pending) {
+            if (state == CLOSED) {
+                return;
+            }
+            state = CLOSED;
+            pending.clear();
+
+            if (inRequests != null) {
+                for (final HidTransport.Request in : inRequests) {
+                    if (in != null) {
+                        in.cancel();
+                        in.close();
+                    }
                 }
+            }
+            if (outRequest != null) {
+                outRequest.cancel();
+                outRequest.close();
+            }
+            transport.close();
+        }
+        closed.countDown();
+        metrics.retire();
+    }
 
-                final UsbRequest r = conn.requestWait(); // blocking
-                if (r.equals(null)) {
-                    throw new IOException("Error receiving data!");
-                } else if (!r.equals(in)) {
-                    throw new IOException("Received response not queued?");
+    /**
+     * Have the transport tell when a request completes, so the session is only polled then.
+     *
+     * @param signal The signal, see {@link HidTransport#setCompletionSignal(Runnable)}.
+     */
+    void setCompletionSignal(@Nullable final Runnable signal) {
+        this.signal = signal;
+        transport.setCompletionSignal(signal);
+    }
+
+    /**
+     * Stop the session from any thread. The servicing thread is woken, and if it has not closed
+     * the session within the timeout the session is closed from the calling thread, so the
+     * transport is always closed when this returns.
+     *
+     * @param timeoutMs How long to wait for the servicing thread, in milliseconds.
+     * @return How long teardown took, in nanoseconds.
+     */
+    long stop(final long timeoutMs) {
+        final long start = System.nanoTime();
+        cancel();
+
+        final Thread t = servicer;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+        synchronized (pending) {
+            // completes any blocking wait in run()
+            if (state == OPEN && inRequests != null) {
+                for (final HidTransport.Request in : inRequests) {
+                    if (in != null) {
+                        in.cancel();
+                    }
                 }
+            }
+        }
 
-                processReceived(buffer.array(), r);
+        try {
+            if (!closed.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                close();
             }
+        } catch (InterruptedException ie) {
+            close();
+            Thread.currentThread().interrupt();
+        }
+        return System.nanoTime() - start;
+    }
 
-            conn.close();
+    /**
+     * @return Whether the session has been closed.
+     */
+    boolean isClosed() {
+        return closed.getCount() == 0;
+    }
 
-            Log.d(TAG, "Done.");
-        } catch (IOException ioe) {
-            notifyListeners(new OKEvent(this, OKEvent.OKEType.ERROR, ioe));
+    /**
+     * Have the servicing thread fail the session, from any other thread. The error is thrown by
+     * the next {@link #poll(long)}, so the metrics and listeners are only touched by the thread
+     * that owns them. The servicing thread is woken through the completion signal, or by
+     * completing its blocking wait.
+     *
+     * @param ioe The error.
+     */
+    void failLater(final IOException ioe) {
+        if (failure == null) {
+            failure = ioe;
+        }
+        final Runnable s = signal;
+        if (s != null) {
+            s.run();
+            return;
+        }
+        synchronized (pending) {
+            if (state == OPEN && inRequests != null) {
+                for (final HidTransport.Request in : inRequests) {
+                    if (in != null) {
+                        in.cancel();
+                    }
+                }
+            }
         }
     }
 
+    /**
+     * Close the session after an error and notify listeners. Call on the servicing thread, see
+     * {@link #failLater(IOException)}.
+     *
+     * @param ioe The error.
+     */
+    void fail(final IOException ioe) {
+        close();
+        int s;
+        do {
+            s = protocol.get();
+            if (KeyState.failed(s)) {
+                return;
+            }
+        } while (!protocol.compareAndSet(s, s | KeyState.FAILED));
+        notifyListeners(new OKEvent(this, OKEvent.OKEType.ERROR, ioe));
+    }
+
     /**
      * Process received data and notify as appropriate.
      *
-     * @param data
-     * @param request
-     */
-    private void processReceived(final byte[] data, final UsbRequest request) {
-        final String inString = new String(data, 0, data.length, StandardCharsets.UTF_8);
-
-        final boolean hasUninitialized = inString.contains("UNINITIALIZED");
-        final boolean hasInitialized = inString.contains("INITIALIZED");
-        final boolean hasUnlocked = inString.contains("UNLOCKED");
-        final boolean hasLocked = inString.contains("LOCKED");
-
-        if (hasUninitialized) {
-            setInitialized(false);
-        } else if (hasInitialized) {
-            setInitialized(true);
-        } else if (hasUnlocked) {
-            setLocked(false);
-        } else if (hasLocked) {
-            setLocked(true);
-        } else {
-            //Log.d(TAG, "Received: " + new String(data));
-            //Log.d(TAG, "Received: " + bytesToHex(data));
-        }
+     * @param data The received packet.
+     */
+    void processReceived(final byte[] data) {
+        final long start = metrics.parse.start();
+        final int found = status.match(data, 0, data.length);
+        metrics.parse.stop(start);
 
-        request.close();
+        switch (found) {
+            case STATUS_UNINITIALIZED:
+                setInitialized(false);
+                break;
+            case STATUS_INITIALIZED:
+                setInitialized(true);
+                break;
+            case STATUS_UNLOCKED:
+                setLocked(false);
+                break;
+            case STATUS_LOCKED:
+                setLocked(true);
+                break;
+            default:
+                //Log.d(TAG, "Received: " + new String(data));
+                //Log.d(TAG, "Received: " + bytesToHex(data));
+        }
     }
 
     private void setInitialized(final boolean value) {
-        if (initialized == null || !initialized.equals(value)) {
-            initialized = value;
-            notifyListeners(new OKEvent(this, OKEvent.OKEType.SET_INITIALIZED, value));
+        if (transition(KeyState.INITIALIZED_SHIFT, value ? KeyState.YES : KeyState.NO)) {
+            notifyListeners(value ? evInitialized : evUninitialized);
             //Log.d(TAG, "Initialized? " + Boolean.toString(value));
         }
     }
 
     private void setLocked(final boolean value) {
-        if (locked == null || !locked.equals(value)) {
-            locked = value;
-            notifyListeners(new OKEvent(this, OKEvent.OKEType.SET_LOCKED, value));
+        if (transition(KeyState.LOCKED_SHIFT, value ? KeyState.YES : KeyState.NO)) {
+            if (!value && trace != null) {
+                trace.mark(LifecycleTrace.Phase.UNLOCK_SEEN);
+            }
+            notifyListeners(value ? evLocked : evUnlocked);
             //Log.d(TAG, "Locked? " + Boolean.toString(value));
         }
     }
 
     /**
-     * Send bytes to the OnlyKey.
+     * Set a field of the protocol state word.
+     *
+     * @param shift The field, see {@link KeyState}.
+     * @param value The new value.
+     * @return Whether this call changed the field.
+     */
+    private boolean transition(final int shift, final int value) {
+        int s;
+        do {
+            s = protocol.get();
+            if (KeyState.get(s, shift) == value) {
+                return false;
+            }
+        } while (!protocol.compareAndSet(s, KeyState.with(s, shift, value)));
+        return true;
+    }
+
+    /**
+     * @return The protocol state word, see {@link KeyState}. May be read from any thread.
+     */
+    int getState() {
+        return protocol.get();
+    }
+
+    /**
+     * Send bytes to the OnlyKey. The write is queued straight away if no other write is in
+     * progress, otherwise it is started when the previous one completes.
      *
      * @param toSend Byte sequence to send.
-     * @throws IOException Thrown on error sending the byte array.
+     * @param onSent Event to notify listeners of once the bytes have been sent, or null.
+     * @throws IOException Thrown if the session is not open or on error queuing the write.
      */
-    private void sendMessage(final byte[] toSend) throws IOException {
-        final UsbRequest out = new UsbRequest();
-        if (!out.initialize(conn, epOut)) {
-            throw new IOException("Request could not initialize out request!");
+    void sendMessage(final byte[] toSend, @Nullable final OKEvent onSent) throws IOException {
+        send(new Message(toSend, NOW, onSent, null, false));
+    }
+
+    /**
+     * Queue a message, waking the servicing thread to watch for its completion. A reused
+     * message that is still waiting to be written is not queued again.
+     *
+     * @param m The message.
+     * @throws IOException Thrown if the session is not open or on error queuing the write.
+     */
+    private void send(final Message m) throws IOException {
+        if (m.bytes != null && m.bytes.length > transport.getOutPacketSize()) {
+            throw new IOException("Message too long!");
+        }
+        synchronized (pending) {
+            if (state != OPEN) {
+                throw new IOException("OnlyKey session is not open!");
+            }
+            if (!m.waiting) {
+                m.waiting = true;
+                pending.add(m);
+            }
+            if (!outBusy) {
+                writeNext();
+            }
         }
-        final ByteBuffer b = ByteBuffer.allocate(epOut.getMaxPacketSize());
 
-        b.put(toSend);
+        final Thread t = servicer;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Queue the next pending message on the OUT request. Call with {@link #pending} held.
+     *
+     * @throws IOException Thrown on error queuing the write.
+     */
+    private void writeNext() throws IOException {
+        final Message m = pending.poll();
+        if (m == null) {
+            outBusy = false;
+            return;
+        }
+        m.waiting = false;
+
+        final ByteBuffer buffer;
+        if (m.bytes == null) {
+            buffer = timeFrame;
+            putTime(buffer, m.second == NOW ? clock.currentTimeMillis() / 1000 : m.second);
+        } else {
+            buffer = outBuffer;
+            buffer.clear();
+            buffer.put(m.bytes);
+            while (buffer.hasRemaining()) {
+                buffer.put((byte) 0);
+            }
+        }
 
-        if (!out.queue(b, epOut.getMaxPacketSize())) {
+        outRequest.setClientData(m);
+        m.queuedNanos = System.nanoTime();
+        if (!outRequest.queue(buffer, buffer.capacity())) {
+            metrics.locked.add(OKMetrics.Counter.QUEUE_FAILURES, 1);
+            outBusy = false;
             throw new IOException("Error queuing request!");
         }
+        outBusy = true;
+    }
 
-        final UsbRequest r = conn.requestWait();
-        if (r.equals(null)) {
-            throw new IOException("Error sending data!");
-        } else if (!r.equals(out)) {
-            throw new IOException("Send request != original?");
+    /**
+     * Handle completion of the OUT request.
+     *
+     * @param m The message that was sent.
+     * @throws IOException Thrown on error queuing the next write.
+     */
+    private void sent(final Message m) throws IOException {
+        final long now = System.nanoTime();
+        final long latency = now - m.queuedNanos;
+        synchronized (pending) {
+            if (state != OPEN) {
+                return;
+            }
+            metrics.locked.add(OKMetrics.Counter.PACKETS_SENT, 1);
+            metrics.locked.add(OKMetrics.Counter.BYTES_SENT, transport.getOutPacketSize());
+            metrics.write.record(latency);
+            final long avg = outLatencyNanos;
+            outLatencyNanos = avg < 0 ? latency : avg + (latency - avg) / 4;
+            writeNext();
         }
 
-        //Log.d(TAG, "Sent: "+bytesToHex(b.array()));
+        //Log.d(TAG, "Sent: " + bytesToHex(m.bytes));
+        final TimeSync.Result result = m.sync == null ? null : m.sync.grade(m.queuedNanos, now);
+        if (result != null) {
+            lastSync = result;
+        }
+        if (m.onSent == evTimeSet) {
+            transition(KeyState.SYNC_SHIFT, result != null && result.isLate()
+                    ? KeyState.SYNC_LATE : KeyState.SYNC_SET);
+        }
+        if (m.probe) {
+            TimeSync.schedule(this, outLatencyNanos);
+        }
+        if (m.onSent == evTimeSet && trace != null) {
+            trace.mark(LifecycleTrace.Phase.TIME_SET);
+        }
+        if (m.onSent != null) {
+            notifyListeners(m.onSent);
+        }
     }
 
     /**
      * Set the current time on the OnlyKey to the current system time.
+     * <p>
+     * The time is taken as the set time frame is written. The frame is prepared when the session
+     * is opened, so this does not allocate. Listeners get a {@link OKEvent.OKEType#SET_TIME}
+     * event once the message has been sent.
      *
-     * @throws IOException
+     * @throws IOException Thrown if the session is not open or on error sending.
      */
     public void setTime() throws IOException {
-        // create packet
-        final byte[] toSend = new byte[9];
-        // add header
-        System.arraycopy(header, 0, toSend, 0, header.length);
-        // set message
-        toSend[4] = MSG_SET_TIME;
-        // copy in time
-        System.arraycopy(getTime(), 0, toSend, 5, 4);
+        transition(KeyState.SYNC_SHIFT, KeyState.SYNC_PENDING);
+        send(timeMessage);
+    }
 
-        sendMessage(toSend);
+    /**
+     * Set the time on the OnlyKey precisely: the set time message is timed to reach the OnlyKey
+     * on a second boundary, compensating for the measured OUT latency (see {@link TimeSync}). If
+     * no write has been timed yet, the time is first set at once, to time it.
+     * <p>
+     * Listeners get a {@link OKEvent.OKEType#SET_TIME} event once the timed message has been
+     * sent, within about a second; {@link #getLastSync()} then has the outcome.
+     *
+     * @throws IOException Thrown if the session is not open or on error sending.
+     */
+    public void syncTime() throws IOException {
+        transition(KeyState.SYNC_SHIFT, KeyState.SYNC_PENDING);
+        final long latency = outLatencyNanos;
+        if (latency < 0) {
+            send(probeMessage);
+        } else {
+            TimeSync.schedule(this, latency);
+        }
+    }
 
-        //XXX: Figure out why the resourced doesn't work here.
-        notifyListeners(new OKEvent(this, OKEvent.OKEType.SET_TIME));
+    /**
+     * Write the timed set time message of a precision sync. Called by the sync timer when due.
+     *
+     * @param sync The planned sync.
+     * @throws IOException Thrown if the session is not open or on error sending.
+     */
+    void writeSync(final TimeSync sync) throws IOException {
+        send(new Message(null, sync.getSecond(), evTimeSet, sync, false));
+    }
 
-        //Log.d(TAG, "Set time with " + bytesToHex(toSend));
+    /**
+     * @return The moving average OUT latency in nanoseconds, or -1 if no write has completed.
+     */
+    long getOutLatencyNanos() {
+        return outLatencyNanos;
+    }
+
+    /**
+     * @return The outcome of the last precision sync, or null if none has completed.
+     */
+    @Nullable
+    TimeSync.Result getLastSync() {
+        return lastSync;
     }
 
     /**
-     * @return Current epoch type as 4 bytes big endian
+     * @param size The OUT packet size.
+     * @return A zero padded set time frame without the time, in a direct buffer.
      */
-    private byte[] getTime() {
-        final int unixTime = (int) (System.currentTimeMillis() / 1000);
-        byte[] currTime = new byte[]{
-                (byte) (unixTime >> 24),
-                (byte) (unixTime >> 16),
-                (byte) (unixTime >> 8),
-                (byte) unixTime};
+    static ByteBuffer newTimeFrame(final int size) {
+        final ByteBuffer frame = ByteBuffer.allocateDirect(size);
+        frame.put(header);
+        frame.put(MSG_SET_TIME);
+        frame.clear();
+        return frame;
+    }
 
-        return currTime;
+    /**
+     * Patch the time into a set time frame. The buffer's position is left alone.
+     *
+     * @param frame  The frame.
+     * @param second The time, in seconds since the epoch.
+     */
+    static void putTime(final ByteBuffer frame, final long second) {
+        frame.putInt(TIME_OFFSET, (int) second);
+    }
+
+    /**
+     * A message waiting to be written.
+     */
+    private static final class Message {
+
+        /**
+         * The bytes to write, or null for a set time frame.
+         */
+        private final
+        @Nullable
+        byte[] bytes;
+
+        /**
+         * The time a set time frame carries, or {@link #NOW}.
+         */
+        private final long second;
+
+        private final
+        @Nullable
+        OKEvent onSent;
+
+        /**
+         * The precision sync this message carries out, or null.
+         */
+        private final
+        @Nullable
+        TimeSync sync;
+
+        /**
+         * Whether this message times the OUT latency for a precision sync to follow.
+         */
+        private final boolean probe;
+
+        /**
+         * Whether the message is in {@link #pending}.
+         */
+        private boolean waiting = false;
+
+        /**
+         * When the message was queued on the OUT request.
+         */
+        private long queuedNanos;
+
+        private Message(@Nullable final byte[] bytes, final long second,
+                        @Nullable final OKEvent onSent, @Nullable final TimeSync sync,
+                        final boolean probe) {
+            this.bytes = bytes;
+            this.second = second;
+            this.onSent = onSent;
+            this.sync = sync;
+            this.probe = probe;
+        }
+    }
+
+    /**
+     * A listener, the event types it is notified of, and where the time spent notifying it is
+     * recorded.
+     */
+    private static final class Subscriber {
+        private final OKListener listener;
+        private final Set<OKEvent.OKEType> types;
+        private final OKMetrics.Histogram dispatch;
+
+        private Subscriber(final OKListener listener, final Set<OKEvent.OKEType> types,
+                           final OKMetrics.Histogram dispatch) {
+            this.listener = listener;
+            this.types = EnumSet.noneOf(OKEvent.OKEType.class);
+            this.types.addAll(types);
+            this.dispatch = dispatch;
+        }
     }
 
     private final static char[] hexArray = "0123456789ABCDEF".toCharArray();
@@ -0,0 +1,154 @@
+package to.crp.android.oktimeset;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records raw OnlyKey packets into a ring of fixed size slots in a memory-mapped file, for
+ * {@link PacketReplay} to feed back later.
+ * <p>
+ * Recording does not lock or do I/O: a writer claims the next slot with an atomic increment and
+ * copies the packet into the mapping, which the kernel writes out on its own, so a capture
+ * survives the process dying. The file is zeroed when opened, which also faults its pages in.
+ * <p>
+ * File layout, big endian: a {@link #HEADER_SIZE} byte header of magic, version, slot count and
+ * slot size, then the slots. A slot holds its sequence number (0 while unused or being written),
+ * a {@code System.nanoTime()} timestamp, the device id, the direction, the packet length and the
+ * packet, zero padded to {@link #MAX_PACKET} bytes. Once the ring has wrapped, the slot of
+ * sequence number {@code n} is reused for {@code n + slots}.
+ */
+final class PacketCapture {
+
+    static final int MAGIC = 0x4F4B4350; // "OKCP"
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+
+    /**
+     * Largest packet kept; longer ones are truncated.
+     */
+    static final int MAX_PACKET = 64;
+
+    static final int SEQ = 0;
+    static final int NANOS = 8;
+    static final int DEVICE = 16;
+    static final int DIRECTION = 20;
+    static final int LENGTH = 21;
+    static final int DATA = 24;
+
+    static final int SLOT_SIZE = DATA + MAX_PACKET;
+
+    static final byte IN = 0;
+    static final byte OUT = 1;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int slots;
+
+    /**
+     * Sequence number of the last record claimed.
+     */
+    private final AtomicLong last = new AtomicLong(0);
+
+    private PacketCapture(final RandomAccessFile file, final MappedByteBuffer map,
+                          final int slots) {
+        this.file = file;
+        this.map = map;
+        this.slots = slots;
+    }
+
+    /**
+     * Start a capture, replacing the file.
+     *
+     * @param path  The capture file.
+     * @param slots The number of packets kept.
+     * @return The capture.
+     * @throws IOException Thrown on error creating or mapping the file.
+     */
+    static PacketCapture open(final File path, final int slots) throws IOException {
+        if (slots < 1) {
+            throw new IllegalArgumentException("Need at least one slot!");
+        }
+        final long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many slots!");
+        }
+
+        final RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(0);
+            file.setLength(size);
+            final MappedByteBuffer map =
+                    file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            for (int i = 0; i < size; i += 8) {
+                map.putLong(i, 0);
+            }
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putInt(8, slots);
+            map.putInt(12, SLOT_SIZE);
+            return new PacketCapture(file, map, slots);
+        } catch (IOException ioe) {
+            file.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Record a packet. May be called from any thread.
+     *
+     * @param deviceId  The device the packet was exchanged with.
+     * @param direction {@link #IN} or {@link #OUT}.
+     * @param packet    The packet, from position 0. Its position is left alone.
+     * @param length    The packet length.
+     */
+    void record(final int deviceId, final byte direction, final ByteBuffer packet,
+                final int length) {
+        final long nanos = System.nanoTime();
+        final long seq = last.incrementAndGet();
+        final int slot = HEADER_SIZE + (int) ((seq - 1) % slots) * SLOT_SIZE;
+        final int len = Math.min(length, MAX_PACKET);
+
+        final MappedByteBuffer map = this.map;
+        map.putLong(slot + SEQ, 0);
+        map.putLong(slot + NANOS, nanos);
+        map.putInt(slot + DEVICE, deviceId);
+        map.put(slot + DIRECTION, direction);
+        map.put(slot + LENGTH, (byte) len);
+
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            map.putLong(slot + DATA + i, packet.getLong(i));
+        }
+        for (; i < len; i++) {
+            map.put(slot + DATA + i, packet.get(i));
+        }
+        for (; i < MAX_PACKET; i++) {
+            map.put(slot + DATA + i, (byte) 0);
+        }
+
+        map.putLong(slot + SEQ, seq);
+    }
+
+    /**
+     * @return The number of packets recorded, including those overwritten since.
+     */
+    long getRecorded() {
+        return last.get();
+    }
+
+    /**
+     * Write the capture out and close the file. Packets recorded after this are lost.
+     *
+     * @throws IOException Thrown on error closing the file.
+     */
+    void close() throws IOException {
+        map.force();
+        file.close();
+    }
+}
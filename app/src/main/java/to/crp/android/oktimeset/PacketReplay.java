@@ -0,0 +1,163 @@
+package to.crp.android.oktimeset;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds the IN packets of a {@link PacketCapture} back through
+ * {@link OnlyKey#processReceived(byte[])} and on to its listeners, either as fast as they are
+ * taken or at the pace they were captured at.
+ * <p>
+ * The capture is loaded in full, in recording order, so replaying does not allocate and can be
+ * repeated, e.g. as a benchmark.
+ */
+final class PacketReplay {
+
+    /**
+     * Device id matching every device.
+     */
+    static final int ALL_DEVICES = -1;
+
+    private final long[] nanos;
+    private final int[] devices;
+    private final byte[] directions;
+    private final byte[][] packets;
+
+    private PacketReplay(final long[] nanos, final int[] devices, final byte[] directions,
+                         final byte[][] packets) {
+        this.nanos = nanos;
+        this.devices = devices;
+        this.directions = directions;
+        this.packets = packets;
+    }
+
+    /**
+     * Load a capture.
+     *
+     * @param path The capture file.
+     * @return The replay.
+     * @throws IOException Thrown on error reading the file or if it is not a capture.
+     */
+    static PacketReplay load(final File path) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            final ByteBuffer map = file.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            return read(map);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @param map The capture.
+     * @return The replay.
+     * @throws IOException Thrown if the buffer does not hold a capture.
+     */
+    private static PacketReplay read(final ByteBuffer map) throws IOException {
+        if (map.capacity() < PacketCapture.HEADER_SIZE || map.getInt(0) != PacketCapture.MAGIC) {
+            throw new IOException("Not an OnlyKey capture!");
+        }
+        if (map.getInt(4) != PacketCapture.VERSION) {
+            throw new IOException("Unsupported capture version " + map.getInt(4) + "!");
+        }
+        final int slots = map.getInt(8);
+        final int slotSize = map.getInt(12);
+        if (slotSize != PacketCapture.SLOT_SIZE || slots < 1
+                || map.capacity() < PacketCapture.HEADER_SIZE + (long) slots * slotSize) {
+            throw new IOException("Corrupt capture header!");
+        }
+
+        // the latest record bounds which sequence numbers are still in the ring
+        long last = 0;
+        for (int s = 0; s < slots; s++) {
+            last = Math.max(last, map.getLong(slot(s) + PacketCapture.SEQ));
+        }
+
+        final List<Integer> found = new ArrayList<>();
+        for (long seq = Math.max(1, last - slots + 1); seq <= last; seq++) {
+            final int at = slot((int) ((seq - 1) % slots));
+            // skips records that were being written when the capture stopped
+            if (map.getLong(at + PacketCapture.SEQ) == seq) {
+                found.add(at);
+            }
+        }
+
+        final int n = found.size();
+        final long[] nanos = new long[n];
+        final int[] devices = new int[n];
+        final byte[] directions = new byte[n];
+        final byte[][] packets = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            final int at = found.get(i);
+            nanos[i] = map.getLong(at + PacketCapture.NANOS);
+            devices[i] = map.getInt(at + PacketCapture.DEVICE);
+            directions[i] = map.get(at + PacketCapture.DIRECTION);
+            final int length = Math.min(map.get(at + PacketCapture.LENGTH) & 0xFF,
+                    PacketCapture.MAX_PACKET);
+            packets[i] = new byte[length];
+            for (int j = 0; j < length; j++) {
+                packets[i][j] = map.get(at + PacketCapture.DATA + j);
+            }
+        }
+        return new PacketReplay(nanos, devices, directions, packets);
+    }
+
+    private static int slot(final int index) {
+        return PacketCapture.HEADER_SIZE + index * PacketCapture.SLOT_SIZE;
+    }
+
+    /**
+     * @return The number of packets, IN and OUT, in the capture.
+     */
+    int size() {
+        return packets.length;
+    }
+
+    /**
+     * Feed the IN packets of a device to a key.
+     *
+     * @param key            The key to feed.
+     * @param deviceId       The device to replay, or {@link #ALL_DEVICES}.
+     * @param originalTiming Whether to keep the time between packets, rather than go flat out.
+     * @return The number of packets fed.
+     * @throws InterruptedIOException Thrown if interrupted while keeping time.
+     */
+    int replay(final OnlyKey key, final int deviceId, final boolean originalTiming)
+            throws InterruptedIOException {
+        final long start = System.nanoTime();
+        long first = 0;
+        int fed = 0;
+        for (int i = 0; i < packets.length; i++) {
+            if (directions[i] != PacketCapture.IN
+                    || (deviceId != ALL_DEVICES && devices[i] != deviceId)) {
+                continue;
+            }
+
+            if (originalTiming) {
+                if (fed == 0) {
+                    first = nanos[i];
+                }
+                long left;
+                while ((left = start + (nanos[i] - first) - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(left);
+                    if (Thread.interrupted()) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted replaying capture!");
+                    }
+                }
+            }
+
+            key.processReceived(packets[i]);
+            fed++;
+        }
+        return fed;
+    }
+}
@@ -0,0 +1,671 @@
+package to.crp.android.oktimeset;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Takes any number of attached OnlyKeys through the stages of provisioning, {@link Stage}, with a
+ * bound on how many keys may be in each stage at once.
+ * <p>
+ * A key that is done with a stage moves on when the next stage has room, and keeps its place in
+ * the stage it is done with until then, so a slow stage holds back the ones before it rather than
+ * piling keys up in between. Keys waiting for a stage are let in first come, first served.
+ * <p>
+ * Nothing takes a lock: keys are found in a {@link DeviceRegistry} by device id, places in a
+ * stage are taken with compare-and-set on a per-stage count, and each key moves between stages
+ * by compare-and-set on its own position word. Opening devices and stopping sessions, which
+ * block, run on a pipeline thread, so a detach never holds up an attach.
+ *
+ * @param <D> The device type, by which the {@link Host} knows a key.
+ */
+final class ProvisioningPipeline<D> {
+
+    enum Stage {
+        /**
+         * Waiting for the user to let the app use the device.
+         */
+        PERMISSION,
+        /**
+         * Opening the device.
+         */
+        OPEN,
+        /**
+         * Serviced by the I/O loop, waiting for the user to unlock the key.
+         */
+        UNLOCK,
+        /**
+         * Precision time sync in progress.
+         */
+        SET_TIME,
+        /**
+         * Checking the sync was on time, see {@link TimeSync#MAX_LATE_NANOS}; a late one is sent
+         * back to {@link #SET_TIME}.
+         */
+        VERIFY
+    }
+
+    /**
+     * How a key left the pipeline.
+     */
+    enum Outcome {
+        /**
+         * The time was set and verified.
+         */
+        SET,
+        /**
+         * The time was set, but late on every attempt.
+         */
+        IMPRECISE,
+        DENIED,
+        DETACHED,
+        FAILED
+    }
+
+    /**
+     * The platform side of the pipeline. Apart from {@link #open(Object)}, its methods are called
+     * on whichever thread moved a key along, often one servicing sessions, so they should hand
+     * anything slow to another thread.
+     *
+     * @param <D> The device type.
+     */
+    interface Host<D> {
+
+        /**
+         * @param device The device.
+         * @return The id of the device, unique among attached devices.
+         */
+        int getId(D device);
+
+        /**
+         * Ask for permission to use a device, answered with
+         * {@link ProvisioningPipeline#permitted(Object, boolean)}, possibly at once.
+         *
+         * @param device The device.
+         */
+        void requestPermission(D device);
+
+        /**
+         * Open a device. Called on a pipeline thread.
+         *
+         * @param device The device.
+         * @return A session on the device that has not been opened.
+         * @throws IOException Thrown on error opening the device.
+         */
+        OnlyKey open(D device) throws IOException;
+
+        /**
+         * A key has left the pipeline. Its session, if it got one, is being stopped.
+         *
+         * @param device  The device.
+         * @param outcome How it left.
+         */
+        void finished(D device, Outcome outcome);
+
+        /**
+         * The last key in the pipeline has left it.
+         */
+        void idle();
+    }
+
+    /**
+     * Syncs tried per key before settling for a late one.
+     */
+    static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Distinct device ids the registry holds: the 127 addresses of a few USB buses.
+     */
+    static final int REGISTRY_CAPACITY = 1024;
+
+    private static final Stage[] STAGES = Stage.values();
+
+    /**
+     * The events that move a key along.
+     */
+    private static final Set<OKEvent.OKEType> EVENTS = EnumSet.of(OKEvent.OKEType.ERROR,
+            OKEvent.OKEType.SET_LOCKED, OKEvent.OKEType.SET_TIME);
+
+    /**
+     * Position of a key that has left the pipeline. No other position equals it.
+     */
+    private static final int DONE = -1;
+
+    /**
+     * No stage, in either half of a position word.
+     */
+    private static final int NONE = 0;
+
+    private final Host<D> host;
+    private final OKIoLoop ioLoop;
+    private final int[] limits;
+
+    /**
+     * Opens devices and stops sessions, both of which block.
+     */
+    private final ExecutorService executor =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "onlyKeyPipeline");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final DeviceRegistry<Entry> entries = new DeviceRegistry<>(REGISTRY_CAPACITY);
+
+    /**
+     * Keys in each stage.
+     */
+    private final AtomicIntegerArray active = new AtomicIntegerArray(STAGES.length);
+
+    /**
+     * Keys waiting for each stage.
+     */
+    private final List<Queue<Entry>> waiting = new ArrayList<>(STAGES.length);
+
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final AtomicInteger finished = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    /**
+     * Create a pipeline.
+     *
+     * @param host   The platform side.
+     * @param ioLoop The I/O loop to service opened keys on.
+     * @param limits How many keys may be in each stage at once, in {@link Stage} order.
+     */
+    ProvisioningPipeline(final Host<D> host, final OKIoLoop ioLoop, final int... limits) {
+        if (limits.length != STAGES.length) {
+            throw new IllegalArgumentException("Need a limit for each of " + STAGES.length
+                    + " stages!");
+        }
+        for (final int limit : limits) {
+            if (limit < 1) {
+                throw new IllegalArgumentException("Stage limits must be at least 1!");
+            }
+        }
+        this.host = host;
+        this.ioLoop = ioLoop;
+        this.limits = limits.clone();
+        for (int i = 0; i < STAGES.length; i++) {
+            waiting.add(new ConcurrentLinkedQueue<Entry>());
+        }
+    }
+
+    /**
+     * Admit an attached device. A device already in the pipeline is ignored. A device whose id
+     * the registry has no room for leaves at once, {@link Outcome#FAILED}.
+     *
+     * @param device The device.
+     */
+    void add(final D device) {
+        if (closed) {
+            return;
+        }
+        final Entry e = new Entry(host.getId(device), device);
+        final Entry at = entries.putIfAbsent(e);
+        if (at != e) {
+            if (at == null) {
+                admitted.incrementAndGet();
+                e.finish(Outcome.FAILED);
+            }
+            return;
+        }
+        admitted.incrementAndGet();
+        e.pos.set(waitingFor(Stage.PERMISSION));
+        enqueue(e, Stage.PERMISSION);
+    }
+
+    /**
+     * Answer a permission request.
+     *
+     * @param device  The device.
+     * @param granted Whether permission was granted.
+     */
+    void permitted(final D device, final boolean granted) {
+        final Entry e = entries.get(host.getId(device));
+        if (e == null) {
+            return;
+        }
+        if (granted) {
+            e.advance(Stage.PERMISSION);
+        } else {
+            e.finish(Outcome.DENIED);
+        }
+    }
+
+    /**
+     * Drop a detached device.
+     *
+     * @param device The device.
+     */
+    void remove(final D device) {
+        final Entry e = entries.get(host.getId(device));
+        if (e != null) {
+            e.finish(Outcome.DETACHED);
+        }
+    }
+
+    /**
+     * @param device The device.
+     * @return {@link DeviceRegistry#OPENING} while the device is being let in and opened,
+     * {@link DeviceRegistry#ACTIVE} once its session is serviced, {@link DeviceRegistry#CLOSING}
+     * while it is being stopped, or -1 if it is not in the pipeline.
+     */
+    int getState(final D device) {
+        final Entry e = entries.get(host.getId(device));
+        return e == null ? -1 : e.getState();
+    }
+
+    /**
+     * Stop all keys still in the pipeline, without telling the host, and stop admitting keys.
+     * The sessions are stopped in parallel on pipeline threads, so this returns at once.
+     */
+    void close() {
+        closed = true;
+        for (final Entry e : entries.values()) {
+            if (e.close()) {
+                stop(e.key);
+            }
+            entries.remove(e);
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Stop a session on a pipeline thread, as stopping blocks for up to
+     * {@link OnlyKey#STOP_TIMEOUT_MS}.
+     *
+     * @param k The session, or null.
+     */
+    private void stop(@Nullable final OnlyKey k) {
+        if (k == null) {
+            return;
+        }
+        final boolean handed = hand(new Runnable() {
+            @Override
+            public void run() {
+                k.stop(OnlyKey.STOP_TIMEOUT_MS);
+            }
+        });
+        if (!handed) {
+            // closes it here, at once
+            k.stop(0);
+        }
+    }
+
+    /**
+     * Run a task on a pipeline thread.
+     *
+     * @param task The task.
+     * @return False if {@link #close()} has shut the pipeline threads down, in which case the
+     * caller tears down whatever the task was for itself, without blocking.
+     */
+    private boolean hand(final Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException ree) {
+            return false;
+        }
+    }
+
+    /**
+     * @return The number of keys admitted since the pipeline was created.
+     */
+    int getAdmitted() {
+        return admitted.get();
+    }
+
+    /**
+     * @return The number of keys that have left the pipeline.
+     */
+    int getFinished() {
+        return finished.get();
+    }
+
+    /**
+     * Write the keys in the pipeline with their stage and protocol state, read without locking.
+     *
+     * @param writer Where to write.
+     */
+    void dump(final PrintWriter writer) {
+        writer.println("Provisioning: " + getFinished() + " of " + getAdmitted() + " done");
+        for (final Entry e : entries.values()) {
+            final int pos = e.pos.get();
+            final int lifecycle = e.getState();
+            final OnlyKey k = e.key;
+            writer.println("  device " + e.getId() + ": "
+                    + (lifecycle == DeviceRegistry.OPENING ? "opening"
+                    : lifecycle == DeviceRegistry.ACTIVE ? "active" : "closing")
+                    + (pos == DONE ? "" : ", in " + held(pos) + ", waiting for " + awaited(pos))
+                    + (k == null ? "" : ", " + KeyState.toString(k.getState())));
+        }
+    }
+
+    /**
+     * @param stage A stage.
+     * @return The position word of a key holding a place in the stage.
+     */
+    private static int holding(final Stage stage) {
+        return stage.ordinal() + 1;
+    }
+
+    /**
+     * @param stage A stage.
+     * @return The position word bits of a key waiting for the stage.
+     */
+    private static int waitingFor(final Stage stage) {
+        return stage.ordinal() + 1 << 4;
+    }
+
+    /**
+     * @param pos A position word.
+     * @return The stage whose place the key holds, or null.
+     */
+    @Nullable
+    private static Stage held(final int pos) {
+        final int h = pos & 0xF;
+        return h == NONE ? null : STAGES[h - 1];
+    }
+
+    /**
+     * @param pos A position word.
+     * @return The stage the key is waiting for, or null.
+     */
+    @Nullable
+    private static Stage awaited(final int pos) {
+        final int w = pos >>> 4 & 0xF;
+        return w == NONE ? null : STAGES[w - 1];
+    }
+
+    /**
+     * Queue a key for a stage, whose bits are set in its position word.
+     *
+     * @param e     The key.
+     * @param stage The stage.
+     */
+    private void enqueue(final Entry e, final Stage stage) {
+        waiting.get(stage.ordinal()).add(e);
+        pump(stage);
+    }
+
+    /**
+     * Give up a place in a stage.
+     *
+     * @param stage The stage.
+     */
+    private void release(final Stage stage) {
+        active.decrementAndGet(stage.ordinal());
+        pump(stage);
+    }
+
+    /**
+     * Let waiting keys into a stage while it has room. Called after every change to the queue or
+     * the count of a stage, so a key is never left waiting with room to spare.
+     *
+     * @param stage The stage.
+     */
+    private void pump(final Stage stage) {
+        final int s = stage.ordinal();
+        final Queue<Entry> queue = waiting.get(s);
+        while (!queue.isEmpty()) {
+            int n;
+            do {
+                n = active.get(s);
+                if (n >= limits[s]) {
+                    return;
+                }
+            } while (!active.compareAndSet(s, n, n + 1));
+
+            final Entry e = queue.poll();
+            if (e == null || !e.admit(stage)) {
+                active.decrementAndGet(s);
+            }
+        }
+    }
+
+    /**
+     * A key in the pipeline, listening to its own session.
+     */
+    private final class Entry extends DeviceRegistry.Entry implements OKListener {
+
+        private final D device;
+
+        /**
+         * The stage whose place the key holds in the low four bits and the stage it waits for in
+         * the next four, each as ordinal + 1, or {@link #DONE}.
+         */
+        private final AtomicInteger pos = new AtomicInteger(NONE);
+
+        private volatile
+        @Nullable
+        OnlyKey key = null;
+
+        /**
+         * Only touched in {@link Stage#VERIFY}, which a key is in once at a time.
+         */
+        private int attempts = 0;
+
+        private Entry(final int id, final D device) {
+            super(id);
+            this.device = device;
+        }
+
+        /**
+         * Take a place in a stage the key was waiting for, giving up the one it held.
+         *
+         * @param stage The stage, whose place has been taken for the key.
+         * @return False if the key has left the pipeline.
+         */
+        private boolean admit(final Stage stage) {
+            final int from = pos.get();
+            if (from == DONE || awaited(from) != stage
+                    || !pos.compareAndSet(from, holding(stage))) {
+                return false;
+            }
+            final Stage left = held(from);
+            if (left != null) {
+                release(left);
+            }
+            begin(stage);
+            return true;
+        }
+
+        /**
+         * Move on from a stage, if the key holds a place in it and is not waiting already.
+         *
+         * @param from The stage the key is done with.
+         */
+        private void advance(final Stage from) {
+            final Stage to = STAGES[from.ordinal() + 1];
+            if (pos.compareAndSet(holding(from), holding(from) | waitingFor(to))) {
+                enqueue(this, to);
+            }
+        }
+
+        /**
+         * Send the key back to {@link Stage#SET_TIME} from {@link Stage#VERIFY}. It gives up its
+         * place first, as keys in SET_TIME may be waiting for it.
+         */
+        private void retry() {
+            if (pos.compareAndSet(holding(Stage.VERIFY), waitingFor(Stage.SET_TIME))) {
+                release(Stage.VERIFY);
+                enqueue(this, Stage.SET_TIME);
+            }
+        }
+
+        /**
+         * Take the key out of the pipeline and stop its session.
+         *
+         * @param outcome How it left.
+         */
+        private void finish(final Outcome outcome) {
+            if (!close()) {
+                return;
+            }
+            final int from = pos.getAndSet(DONE);
+            final Stage awaited = awaited(from);
+            if (awaited != null) {
+                // if it has been taken off already, admit() fails and hands the place back
+                waiting.get(awaited.ordinal()).remove(this);
+            }
+            final Stage held = held(from);
+            if (held != null) {
+                release(held);
+            }
+
+            final OnlyKey k = key;
+            if (closed) {
+                return;
+            }
+            final boolean handed = hand(new Runnable() {
+                @Override
+                public void run() {
+                    if (k != null) {
+                        k.stop(OnlyKey.STOP_TIMEOUT_MS);
+                    }
+                    entries.remove(Entry.this);
+                }
+            });
+            if (!handed) {
+                // closed since it was checked above
+                if (k != null) {
+                    k.stop(0);
+                }
+                entries.remove(this);
+            }
+            final boolean idle = finished.incrementAndGet() == admitted.get();
+            host.finished(device, outcome);
+            if (idle) {
+                host.idle();
+            }
+        }
+
+        /**
+         * Start on a stage just entered.
+         *
+         * @param stage The stage.
+         */
+        private void begin(final Stage stage) {
+            final OnlyKey k = key;
+            switch (stage) {
+                case PERMISSION:
+                    host.requestPermission(device);
+                    break;
+                case OPEN:
+                    final boolean opening = hand(new Runnable() {
+                        @Override
+                        public void run() {
+                            open();
+                        }
+                    });
+                    if (!opening) {
+                        finish(Outcome.FAILED);
+                    }
+                    break;
+                case UNLOCK:
+                    final boolean registering = hand(new Runnable() {
+                        @Override
+                        public void run() {
+                            register(k);
+                        }
+                    });
+                    if (!registering) {
+                        k.close();
+                        finish(Outcome.FAILED);
+                    }
+                    break;
+                case SET_TIME:
+                    try {
+                        k.syncTime();
+                    } catch (IOException ioe) {
+                        // possibly on another key's thread
+                        k.failLater(ioe);
+                    }
+                    break;
+                case VERIFY:
+                    verify(k);
+                    break;
+            }
+        }
+
+        private void open() {
+            final OnlyKey k;
+            try {
+                k = host.open(device);
+            } catch (IOException ioe) {
+                finish(Outcome.FAILED);
+                return;
+            }
+            k.addListener(this, EVENTS);
+            key = k;
+            if (getState() == DeviceRegistry.CLOSING) {
+                // detached while opening; finish() may not have seen the key
+                k.close();
+                return;
+            }
+            advance(Stage.OPEN);
+        }
+
+        private void register(final OnlyKey k) {
+            try {
+                ioLoop.register(k);
+                activate();
+            } catch (IOException ioe) {
+                k.close();
+                finish(Outcome.FAILED);
+            }
+        }
+
+        private void verify(final OnlyKey k) {
+            if (KeyState.sync(k.getState()) == KeyState.SYNC_SET) {
+                finish(Outcome.SET);
+            } else if (++attempts < MAX_ATTEMPTS) {
+                retry();
+            } else {
+                finish(Outcome.IMPRECISE);
+            }
+        }
+
+        @Override
+        public void okError(final OKEvent event) {
+            finish(Outcome.FAILED);
+        }
+
+        @Override
+        public void okMessage(final OKEvent event) {
+        }
+
+        @Override
+        public void okSetInitialized(final OKEvent event) {
+        }
+
+        @Override
+        public void okSetLocked(final OKEvent event) {
+            if (!event.getBoolVal()) {
+                advance(Stage.UNLOCK);
+            }
+        }
+
+        @Override
+        public void okSetTime(final OKEvent event) {
+            advance(Stage.SET_TIME);
+        }
+    }
+}
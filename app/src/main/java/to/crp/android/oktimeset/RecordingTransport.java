@@ -0,0 +1,127 @@
+package to.crp.android.oktimeset;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link HidTransport} that records every packet it carries into a {@link PacketCapture}: OUT
+ * packets as they are queued and IN packets as they are reaped, on the thread doing so.
+ */
+class RecordingTransport implements HidTransport {
+
+    private final HidTransport transport;
+    private final PacketCapture capture;
+    private final int deviceId;
+
+    /**
+     * Create a recording transport.
+     *
+     * @param transport The transport to record.
+     * @param capture   The capture to record into.
+     * @param deviceId  The device id to record packets under.
+     */
+    RecordingTransport(final HidTransport transport, final PacketCapture capture,
+                       final int deviceId) {
+        this.transport = transport;
+        this.capture = capture;
+        this.deviceId = deviceId;
+    }
+
+    @Override
+    public int getInPacketSize() {
+        return transport.getInPacketSize();
+    }
+
+    @Override
+    public int getOutPacketSize() {
+        return transport.getOutPacketSize();
+    }
+
+    @Override
+    public Request newRequest(final boolean in) throws IOException {
+        return new RecordingRequest(transport.newRequest(in), in);
+    }
+
+    @Override
+    public
+    @Nullable
+    Request await(final long timeoutMs) throws IOException {
+        final Request done = transport.await(timeoutMs);
+        if (done == null) {
+            return null;
+        }
+        // the wrapped request carries its wrapper as client data
+        final RecordingRequest r = (RecordingRequest) done.getClientData();
+        if (r.in && !r.cancelled) {
+            capture.record(deviceId, PacketCapture.IN, r.buffer, r.length);
+        }
+        return r;
+    }
+
+    @Override
+    public void setCompletionSignal(@Nullable final Runnable signal) {
+        transport.setCompletionSignal(signal);
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+    }
+
+    private final class RecordingRequest implements Request {
+
+        private final Request request;
+        private final boolean in;
+
+        private
+        @Nullable
+        Object clientData = null;
+
+        private ByteBuffer buffer;
+        private int length;
+        private volatile boolean cancelled = false;
+
+        private RecordingRequest(final Request request, final boolean in) {
+            this.request = request;
+            this.in = in;
+            request.setClientData(this);
+        }
+
+        @Override
+        public boolean queue(final ByteBuffer buffer, final int length) {
+            this.buffer = buffer;
+            this.length = length;
+            cancelled = false;
+            final boolean queued = request.queue(buffer, length);
+            if (queued && !in) {
+                capture.record(deviceId, PacketCapture.OUT, buffer, length);
+            }
+            return queued;
+        }
+
+        @Override
+        public boolean cancel() {
+            cancelled = true;
+            return request.cancel();
+        }
+
+        @Override
+        public void close() {
+            request.close();
+        }
+
+        @Override
+        public
+        @Nullable
+        Object getClientData() {
+            return clientData;
+        }
+
+        @Override
+        public void setClientData(@Nullable final Object data) {
+            clientData = data;
+        }
+    }
+}
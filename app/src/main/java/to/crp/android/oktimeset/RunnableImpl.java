@@ -1,15 +1,58 @@
 package to.crp.android.oktimeset;
 
+import android.support.annotation.Nullable;
+
 public abstract class RunnableImpl implements Runnable {
 
-    private boolean cancelled = false;
+    private volatile boolean cancelled = false;
+
+    /**
+     * The thread running {@link #runImpl()}, or null when not running.
+     */
+    private volatile
+    @Nullable
+    Thread thread = null;
+
+    @Override
+    public final void run() {
+        thread = Thread.currentThread();
+        try {
+            runImpl();
+        } finally {
+            thread = null;
+        }
+    }
+
+    /**
+     * The work to do. Should return soon after {@link #isCancelledOrInterrupted()} becomes true.
+     */
+    protected abstract void runImpl();
 
     public void cancel() {
         this.cancelled = true;
     }
 
+    /**
+     * Interrupt the thread running this, if any.
+     */
     public void interrupt() {
-        Thread.currentThread().interrupt();
+        final Thread t = thread;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * @return The thread running this, or null when not running.
+     */
+    public
+    @Nullable
+    Thread getThread() {
+        return thread;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
     }
 
     public boolean isCancelledOrInterrupted() {
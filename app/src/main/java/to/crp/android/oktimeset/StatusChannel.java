@@ -0,0 +1,157 @@
+package to.crp.android.oktimeset;
+
+/**
+ * Carries status updates to the UI at most once per display frame.
+ * <p>
+ * Posting a status keeps it as the latest of its key and asks for the next frame, once however
+ * many statuses are posted before then. On the frame, the latest status of each key posted to
+ * since the last frame is shown, in the order the keys were last posted to, so the most recent
+ * post is shown last. A key that goes INITIALIZED, LOCKED, UNLOCKED and time set within a frame
+ * is thus shown once, as time set.
+ * <p>
+ * Posting does not allocate once the channel has held as many keys at once as it will: keys and
+ * statuses are kept in arrays that only grow. Keys are compared by identity. The channel holds
+ * no key once the frame has shown it. Used on one thread only, normally the main thread.
+ *
+ * @param <K> The key type.
+ * @param <T> The status type.
+ */
+final class StatusChannel<K, T> {
+
+    /**
+     * Asks for {@link #frame()} to be called on the next display frame.
+     */
+    interface Frames {
+        void request();
+    }
+
+    /**
+     * Where statuses are shown.
+     *
+     * @param <K> The key type.
+     * @param <T> The status type.
+     */
+    interface Sink<K, T> {
+
+        /**
+         * @param key    The key.
+         * @param status Its latest status.
+         */
+        void show(K key, T status);
+    }
+
+    private final Frames frames;
+    private final Sink<K, T> sink;
+
+    /**
+     * Keys posted to since the last frame, in the order last posted to, and their latest
+     * statuses.
+     */
+    private Object[] keys = new Object[4];
+    private Object[] statuses = new Object[4];
+    private int count = 0;
+
+    private boolean requested = false;
+
+    private long posted = 0;
+    private long framesShown = 0;
+
+    /**
+     * Create a channel.
+     *
+     * @param frames Asks for frames.
+     * @param sink   Where statuses are shown.
+     */
+    StatusChannel(final Frames frames, final Sink<K, T> sink) {
+        this.frames = frames;
+        this.sink = sink;
+    }
+
+    /**
+     * Post the status of a key.
+     *
+     * @param key    The key.
+     * @param status The status.
+     */
+    void post(final K key, final T status) {
+        posted++;
+        int i = 0;
+        while (i < count && keys[i] != key) {
+            i++;
+        }
+        if (i == count) {
+            if (count == keys.length) {
+                grow();
+            }
+            count++;
+        } else if (i < count - 1) {
+            // move the key to the end, behind those posted to since
+            System.arraycopy(keys, i + 1, keys, i, count - 1 - i);
+            System.arraycopy(statuses, i + 1, statuses, i, count - 1 - i);
+            i = count - 1;
+        }
+        keys[i] = key;
+        statuses[i] = status;
+
+        if (!requested) {
+            requested = true;
+            frames.request();
+        }
+    }
+
+    /**
+     * Show the statuses posted since the last frame. Called on a display frame.
+     */
+    @SuppressWarnings("unchecked")
+    void frame() {
+        requested = false;
+        if (count == 0) {
+            return;
+        }
+        framesShown++;
+        for (int i = 0; i < count; i++) {
+            final K key = (K) keys[i];
+            final T status = (T) statuses[i];
+            keys[i] = null;
+            statuses[i] = null;
+            sink.show(key, status);
+        }
+        count = 0;
+    }
+
+    /**
+     * Drop the statuses not yet shown, along with the frame asked for, which the caller is to
+     * cancel; the next post asks for a new one. If it comes anyway, it shows nothing.
+     */
+    void clear() {
+        requested = false;
+        for (int i = 0; i < count; i++) {
+            keys[i] = null;
+            statuses[i] = null;
+        }
+        count = 0;
+    }
+
+    /**
+     * @return The number of statuses posted.
+     */
+    long getPosted() {
+        return posted;
+    }
+
+    /**
+     * @return The number of frames that showed any status.
+     */
+    long getFrames() {
+        return framesShown;
+    }
+
+    private void grow() {
+        final Object[] k = new Object[keys.length * 2];
+        final Object[] s = new Object[keys.length * 2];
+        System.arraycopy(keys, 0, k, 0, count);
+        System.arraycopy(statuses, 0, s, 0, count);
+        keys = k;
+        statuses = s;
+    }
+}
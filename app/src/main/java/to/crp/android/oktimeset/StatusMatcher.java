@@ -0,0 +1,140 @@
+package to.crp.android.oktimeset;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds status tokens in raw OnlyKey packets.
+ * <p>
+ * A packet is scanned once for all tokens without decoding it or allocating: each byte is looked
+ * up in a table of tokens starting with that byte, and only those candidates are compared in full.
+ * Tokens are added in precedence order: when a packet contains several of them,
+ * {@link #match(byte[], int, int)} returns the id of the one added first.
+ * <p>
+ * Tokens must be added before the matcher is shared with the reader thread.
+ */
+class StatusMatcher {
+
+    /**
+     * Returned by {@link #match(byte[], int, int)} when no token is present.
+     */
+    static final int NO_MATCH = -1;
+
+    /**
+     * Precedence is tracked as a bit per token.
+     */
+    private static final int MAX_TOKENS = 32;
+
+    private final List<byte[]> tokenList = new ArrayList<>();
+    private final List<Integer> idList = new ArrayList<>();
+
+    /**
+     * Tokens by precedence.
+     */
+    private byte[][] tokens = new byte[0][];
+
+    /**
+     * Token ids by precedence.
+     */
+    private int[] ids = new int[0];
+
+    /**
+     * Indexes of the tokens starting with each byte value, or null if there are none.
+     */
+    private int[][] byFirst = new int[256][];
+
+    /**
+     * Add a token. It takes precedence over all tokens added after it.
+     *
+     * @param token The ASCII token to look for.
+     * @param id    The id to return when the token is the highest-precedence match.
+     */
+    void addToken(final String token, final int id) {
+        if (token.isEmpty()) {
+            throw new IllegalArgumentException("Empty status token!");
+        }
+        if (tokenList.size() == MAX_TOKENS) {
+            throw new IllegalStateException("Too many status tokens!");
+        }
+        tokenList.add(token.getBytes(StandardCharsets.US_ASCII));
+        idList.add(id);
+        build();
+    }
+
+    /**
+     * Find the highest-precedence token in a packet.
+     *
+     * @param data The packet.
+     * @param off  Offset of the first byte to scan.
+     * @param len  Number of bytes to scan.
+     * @return The id of the matching token, or {@link #NO_MATCH}.
+     */
+    int match(final byte[] data, final int off, final int len) {
+        final byte[][] tokens = this.tokens;
+        final int[][] byFirst = this.byFirst;
+        final int end = off + len;
+
+        int found = 0;
+        for (int i = off; i < end; i++) {
+            final int[] candidates = byFirst[data[i] & 0xFF];
+            if (candidates == null) {
+                continue;
+            }
+            for (final int t : candidates) {
+                if ((found & (1 << t)) == 0 && regionMatches(tokens[t], data, i, end)) {
+                    found |= 1 << t;
+                }
+            }
+        }
+
+        return found == 0 ? NO_MATCH : ids[Integer.numberOfTrailingZeros(found)];
+    }
+
+    /**
+     * @return Whether {@code token} occurs in {@code data} at {@code pos}, before {@code end}.
+     */
+    private static boolean regionMatches(final byte[] token, final byte[] data, final int pos,
+                                         final int end) {
+        if (end - pos < token.length) {
+            return false;
+        }
+        // first byte already matched
+        for (int j = 1; j < token.length; j++) {
+            if (data[pos + j] != token[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rebuild the lookup tables.
+     */
+    private void build() {
+        final int count = tokenList.size();
+        final byte[][] newTokens = tokenList.toArray(new byte[count][]);
+        final int[] newIds = new int[count];
+        final int[][] newByFirst = new int[256][];
+
+        for (int t = 0; t < count; t++) {
+            newIds[t] = idList.get(t);
+
+            final int first = newTokens[t][0] & 0xFF;
+            final int[] prev = newByFirst[first];
+            final int[] next;
+            if (prev == null) {
+                next = new int[1];
+            } else {
+                next = new int[prev.length + 1];
+                System.arraycopy(prev, 0, next, 0, prev.length);
+            }
+            next[next.length - 1] = t;
+            newByFirst[first] = next;
+        }
+
+        tokens = newTokens;
+        ids = newIds;
+        byFirst = newByFirst;
+    }
+}
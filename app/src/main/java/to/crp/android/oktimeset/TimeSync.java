@@ -0,0 +1,239 @@
+package to.crp.android.oktimeset;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Precision time sync: the set time frame for second {@code S} is written so that it reaches the
+ * OnlyKey as close as possible to the wall clock second boundary {@code S}.
+ * <p>
+ * The OnlyKey only takes whole seconds, so a frame written at an arbitrary moment leaves its clock
+ * up to a second behind. Instead, the OUT transfer latency {@code L} of the device is measured
+ * first, and the frame is queued at {@code S - L/2}, so the middle of the transfer falls on the
+ * boundary. The frame is known to have arrived somewhere between being queued and its completion;
+ * the residual error reported is the middle of that window less the boundary, give or take half
+ * its width.
+ */
+final class TimeSync {
+
+    /**
+     * Least time from planning a write to the write, so the timer can be relied upon.
+     */
+    private static final long MIN_LEAD_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    /**
+     * How long before the write the timer fires; the rest is waited out precisely.
+     */
+    private static final long EARLY_WAKE_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    /**
+     * Left of the wait that is spun rather than parked.
+     */
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /**
+     * How late a write may be queued and still count as on time.
+     */
+    static final long MAX_LATE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "onlyKeyTimeSync");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * The second written, in seconds since the epoch.
+     */
+    private final long second;
+
+    /**
+     * {@code System.nanoTime()} of the boundary of {@link #second}.
+     */
+    private final long boundaryNanos;
+
+    /**
+     * {@code System.nanoTime()} to queue the write at.
+     */
+    private final long writeAtNanos;
+
+    private TimeSync(final long second, final long boundaryNanos, final long writeAtNanos) {
+        this.second = second;
+        this.boundaryNanos = boundaryNanos;
+        this.writeAtNanos = writeAtNanos;
+    }
+
+    /**
+     * Plan a write for the next second boundary far enough ahead.
+     *
+     * @param wallMs       The wall clock, in milliseconds since the epoch.
+     * @param nowNanos     {@code System.nanoTime()} at {@code wallMs}.
+     * @param latencyNanos The OUT transfer latency of the device.
+     * @return The plan.
+     */
+    static TimeSync plan(final long wallMs, final long nowNanos, final long latencyNanos) {
+        long second = wallMs / 1000 + 1;
+        long boundaryNanos = nowNanos + TimeUnit.MILLISECONDS.toNanos(second * 1000 - wallMs);
+        long writeAtNanos = boundaryNanos - latencyNanos / 2;
+        while (writeAtNanos - nowNanos < MIN_LEAD_NANOS) {
+            second++;
+            boundaryNanos += TimeUnit.SECONDS.toNanos(1);
+            writeAtNanos += TimeUnit.SECONDS.toNanos(1);
+        }
+        return new TimeSync(second, boundaryNanos, writeAtNanos);
+    }
+
+    /**
+     * Plan a write for a key and carry it out, all on the sync timer.
+     *
+     * @param key          The key.
+     * @param latencyNanos The OUT transfer latency of the key.
+     */
+    static void schedule(final OnlyKey key, final long latencyNanos) {
+        timer.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long[] clock = sampleClock(key.getClock());
+                final TimeSync sync = plan(clock[0], clock[1], latencyNanos);
+                timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        sync.write(key);
+                    }
+                }, sync.writeAtNanos - clock[1] - EARLY_WAKE_NANOS, TimeUnit.NANOSECONDS);
+            }
+        });
+    }
+
+    /**
+     * Read the wall clock just after it ticks over, so its millisecond is exact. A clock that
+     * does not tick within {@link #EARLY_WAKE_NANOS} is read as is.
+     *
+     * @param clock The wall clock.
+     * @return The wall clock in milliseconds, and {@code System.nanoTime()} at that moment.
+     */
+    private static long[] sampleClock(final OKClock clock) {
+        final long start = clock.currentTimeMillis();
+        final long giveUp = System.nanoTime() + EARLY_WAKE_NANOS;
+        long wallMs;
+        long nanos;
+        do {
+            wallMs = clock.currentTimeMillis();
+            nanos = System.nanoTime();
+        } while (wallMs == start && nanos - giveUp < 0);
+        return new long[]{wallMs, nanos};
+    }
+
+    /**
+     * Wait precisely until the write is due, then write.
+     *
+     * @param key The key to write to.
+     */
+    private void write(final OnlyKey key) {
+        long left;
+        while ((left = writeAtNanos - System.nanoTime()) > SPIN_NANOS) {
+            LockSupport.parkNanos(left - SPIN_NANOS);
+        }
+        while (writeAtNanos - System.nanoTime() > 0) {
+            // spin
+        }
+
+        try {
+            key.writeSync(this);
+        } catch (IOException ioe) {
+            if (!key.isClosed()) {
+                key.failLater(ioe);
+            }
+        }
+    }
+
+    /**
+     * @return The second to write, in seconds since the epoch.
+     */
+    long getSecond() {
+        return second;
+    }
+
+    /**
+     * Grade the write once it has completed.
+     *
+     * @param queuedNanos    When the frame was queued.
+     * @param completedNanos When its completion was handled.
+     * @return The result.
+     */
+    Result grade(final long queuedNanos, final long completedNanos) {
+        final long window = completedNanos - queuedNanos;
+        return new Result(second, queuedNanos + window / 2 - boundaryNanos, window / 2,
+                queuedNanos - writeAtNanos);
+    }
+
+    /**
+     * Outcome of a precision sync.
+     */
+    static final class Result {
+
+        private final long second;
+        private final long residualNanos;
+        private final long uncertaintyNanos;
+        private final long lateNanos;
+
+        private Result(final long second, final long residualNanos, final long uncertaintyNanos,
+                       final long lateNanos) {
+            this.second = second;
+            this.residualNanos = residualNanos;
+            this.uncertaintyNanos = uncertaintyNanos;
+            this.lateNanos = lateNanos;
+        }
+
+        /**
+         * @return The second written, in seconds since the epoch.
+         */
+        long getSecond() {
+            return second;
+        }
+
+        /**
+         * @return Estimated error of the OnlyKey clock in nanoseconds, positive if it is behind.
+         */
+        long getResidualNanos() {
+            return residualNanos;
+        }
+
+        /**
+         * @return How far the residual may be off either way, in nanoseconds.
+         */
+        long getUncertaintyNanos() {
+            return uncertaintyNanos;
+        }
+
+        /**
+         * @return How much later than planned the frame was queued, in nanoseconds.
+         */
+        long getLateNanos() {
+            return lateNanos;
+        }
+
+        /**
+         * @return Whether the frame was queued more than {@link #MAX_LATE_NANOS} late.
+         */
+        boolean isLate() {
+            return lateNanos > MAX_LATE_NANOS;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "set %d, residual %+.3f ms +/- %.3f ms, queued %.3f ms late",
+                    second, residualNanos / 1e6, uncertaintyNanos / 1e6, lateNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package to.crp.android.oktimeset;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Invisible target of the USB attach intent. Hands the attached OnlyKey to
+ * {@link OKSyncService} and finishes without drawing anything, so attaching a key does not bring
+ * up the UI.
+ */
+public class UsbAttachActivity extends Activity {
+
+    @Override
+    protected void onCreate(final Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        Log.d(MainActivity.TAG, "onCreate(), action: " + getIntent().getAction());
+        // a recreated activity would deliver the same attach again
+        if (savedInstanceState == null) {
+            OKSyncService.start(this, getIntent());
+        }
+        finish();
+    }
+}
@@ -0,0 +1,521 @@
+package to.crp.android.oktimeset;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+import android.hardware.usb.UsbRequest;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link HidTransport} over the Android USB host API.
+ * <p>
+ * The framework only waits on a connection by blocking in {@code requestWait()}: a timed wait
+ * that finds nothing costs it a {@code TimeoutException}. But the usbfs file descriptor behind
+ * each connection polls writable while a completed request waits to be reaped. So once a
+ * completion signal is set, the connection is handed to one {@link CompletionWaiter} shared by
+ * all transports, which polls every connection at once and reaps each completed request, so
+ * {@code requestWait()} never blocks. It hands them over through a queue, and
+ * {@link #await(long)} only takes from that queue.
+ */
+class UsbHidTransport implements HidTransport, CompletionWaiter.Source {
+
+    private static final String TAG = "onlykeyusb";
+
+    /**
+     * Validated layouts by {@link #cacheKey(UsbDevice)}, so a key plugged in again is opened
+     * without walking its descriptors.
+     */
+    private static final ConcurrentMap<String, Layout> layouts = new ConcurrentHashMap<>();
+
+    /**
+     * Requests per transport, bounding the completions waiting in {@link #reaped}.
+     */
+    private static final int MAX_REQUESTS = 32;
+
+    /**
+     * Stack of the waiter thread, which only ever blocks polling.
+     */
+    private static final long WAITER_STACK_BYTES = 64 * 1024;
+
+    /**
+     * Waits on the connections of every transport, created with the first one.
+     */
+    private static
+    @Nullable
+    CompletionWaiter<UsbHidTransport> shared = null;
+
+    private final CompletionWaiter<UsbHidTransport> waiter;
+
+    private final UsbDeviceConnection conn;
+    private final UsbEndpoint epIn;
+    private final UsbEndpoint epOut;
+
+    /**
+     * A duplicate of the connection's file descriptor, for the waiter to poll. Only closed once
+     * the waiter has stopped polling it.
+     */
+    private final ParcelFileDescriptor polled;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * Requests reaped by the waiter and not yet handed out by {@link #await(long)}.
+     */
+    private final BlockingQueue<UsbHidRequest> reaped = new ArrayBlockingQueue<>(MAX_REQUESTS);
+
+    private volatile
+    @Nullable
+    Runnable signal = null;
+
+    private boolean watched = false;
+
+    /**
+     * Why the waiter stopped watching the connection, or null.
+     */
+    private volatile
+    @Nullable
+    IOException error = null;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Create a transport over an open connection.
+     *
+     * @param conn   The USB device connection.
+     * @param epIn   The IN USB endpoint.
+     * @param epOut  The OUT USB endpoint.
+     * @param polled A duplicate of the connection's file descriptor.
+     * @param waiter The waiter to hand it to.
+     */
+    UsbHidTransport(final UsbDeviceConnection conn, final UsbEndpoint epIn,
+                    final UsbEndpoint epOut, final ParcelFileDescriptor polled,
+                    final CompletionWaiter<UsbHidTransport> waiter) {
+        this.conn = conn;
+        this.epIn = epIn;
+        this.epOut = epOut;
+        this.polled = polled;
+        this.waiter = waiter;
+    }
+
+    /**
+     * Open the HID interface of an OnlyKey.
+     *
+     * @param device  The OnlyKey USB device.
+     * @param manager The USBManager.
+     * @return The transport.
+     * @throws IOException Thrown on error configuring the OnlyKey USB device.
+     */
+    static UsbHidTransport open(final UsbDevice device, final UsbManager manager)
+            throws IOException {
+        final String key = cacheKey(device);
+        Layout layout = key == null ? null : layouts.get(key);
+        if (layout == null || !layout.fits(device)) {
+            layout = Layout.scan(device);
+        }
+        final UsbInterface intf = device.getInterface(layout.intf);
+
+        // get connection
+        final UsbDeviceConnection connection = manager.openDevice(device);
+        if (connection == null) {
+            throw new IOException("Could not open connection to USB device!");
+        }
+        Log.d(TAG, "Opened USB connection.");
+        final CompletionWaiter<UsbHidTransport> waiter;
+        final ParcelFileDescriptor polled;
+        try {
+            if (!connection.claimInterface(intf, true)) {
+                throw new IOException("Could not claim OnlyKey interface!");
+            }
+            waiter = waiter();
+            polled = ParcelFileDescriptor.fromFd(connection.getFileDescriptor());
+        } catch (IOException ioe) {
+            connection.close();
+            throw ioe;
+        }
+        if (key != null) {
+            layouts.put(key, layout);
+        }
+
+        return new UsbHidTransport(connection, intf.getEndpoint(layout.in),
+                intf.getEndpoint(layout.out), polled, waiter);
+    }
+
+    /**
+     * @return The waiter shared by all transports.
+     * @throws IOException Thrown if it could not be created.
+     */
+    private static synchronized CompletionWaiter<UsbHidTransport> waiter() throws IOException {
+        if (shared == null) {
+            shared = new CompletionWaiter<>(new FdPoller(), "onlyKeyUsb", WAITER_STACK_BYTES);
+        }
+        return shared;
+    }
+
+    /**
+     * @param device A USB device the app has permission for.
+     * @return The key of the device in {@link #layouts}, or null if it has no serial number.
+     */
+    private static
+    @Nullable
+    String cacheKey(final UsbDevice device) {
+        final String serial;
+        try {
+            serial = device.getSerialNumber();
+        } catch (SecurityException se) {
+            return null;
+        }
+        if (serial == null || serial.isEmpty()) {
+            return null;
+        }
+        return device.getVendorId() + ":" + device.getProductId() + ":" + serial;
+    }
+
+    @Override
+    public int getInPacketSize() {
+        return epIn.getMaxPacketSize();
+    }
+
+    @Override
+    public int getOutPacketSize() {
+        return epOut.getMaxPacketSize();
+    }
+
+    @Override
+    public Request newRequest(final boolean in) throws IOException {
+        if (requests.incrementAndGet() > MAX_REQUESTS) {
+            throw new IOException("Too many requests!");
+        }
+        final UsbRequest r = new UsbRequest();
+        if (!r.initialize(conn, in ? epIn : epOut)) {
+            throw new IOException("Request could not initialize " + (in ? "in" : "out")
+                    + " request!");
+        }
+        return new UsbHidRequest(r);
+    }
+
+    @Override
+    public
+    @Nullable
+    Request await(final long timeoutMs) throws IOException {
+        if (signal != null) {
+            final UsbHidRequest r = reaped.poll();
+            if (r == null && error != null) {
+                throw error;
+            }
+            return r;
+        }
+        if (timeoutMs != WAIT_FOREVER) {
+            throw new IllegalArgumentException("Only blocking waits without a signal!");
+        }
+        return request(conn.requestWait()); // blocking
+    }
+
+    /**
+     * @param r A request returned by {@code requestWait()}.
+     * @return Its wrapper.
+     * @throws IOException Thrown if the wait failed.
+     */
+    private static UsbHidRequest request(@Nullable final UsbRequest r) throws IOException {
+        if (r == null || !(r.getClientData() instanceof UsbHidRequest)) {
+            throw new IOException("Error receiving data!");
+        }
+        return (UsbHidRequest) r.getClientData();
+    }
+
+    @Override
+    public synchronized void setCompletionSignal(@Nullable final Runnable signal) {
+        this.signal = signal;
+        if (signal != null && !watched && !closed) {
+            watched = true;
+            waiter.add(this);
+        }
+    }
+
+    /**
+     * Reap the completed request the waiter found, which {@code requestWait()} returns at once,
+     * and hand it to {@link #await(long)}. Holds the transport's lock, so the connection is not
+     * closed under the wait.
+     */
+    @Override
+    public synchronized boolean reap() {
+        if (closed) {
+            return false;
+        }
+        try {
+            // cannot be full, a request completes once per queuing
+            reaped.offer(request(conn.requestWait()));
+        } catch (IOException ioe) {
+            fail(ioe);
+            return false;
+        }
+        signal();
+        return true;
+    }
+
+    @Override
+    public void fail(final IOException ioe) {
+        error = ioe;
+        signal();
+    }
+
+    @Override
+    public void release() {
+        try {
+            polled.close();
+        } catch (IOException ioe) {
+            Log.w(TAG, "Could not close polled descriptor.", ioe);
+        }
+    }
+
+    private void signal() {
+        final Runnable s = signal;
+        if (s != null) {
+            s.run();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (watched) {
+            waiter.remove(this);
+        } else {
+            release();
+        }
+        conn.close();
+        Log.d(TAG, "Closed USB connection.");
+    }
+
+    /**
+     * Polls the connections' file descriptors, and a pipe to wake it.
+     */
+    private static final class FdPoller implements CompletionWaiter.Poller<UsbHidTransport> {
+
+        private final FileDescriptor wakeIn;
+        private final FileDescriptor wakeOut;
+
+        /**
+         * Whether a wake is in the pipe, so it never holds more than one byte.
+         */
+        private final AtomicBoolean woken = new AtomicBoolean();
+        private final byte[] wakeByte = new byte[1];
+        private final byte[] drained = new byte[1];
+
+        private
+        @Nullable
+        List<UsbHidTransport> sources = null;
+        private StructPollfd[] fds = new StructPollfd[0];
+
+        private FdPoller() throws IOException {
+            try {
+                final FileDescriptor[] pipe = Os.pipe();
+                wakeIn = pipe[0];
+                wakeOut = pipe[1];
+            } catch (ErrnoException ee) {
+                throw new IOException("Could not create USB waiter pipe!", ee);
+            }
+        }
+
+        @Override
+        public void poll(final List<UsbHidTransport> sources, final boolean[] ready)
+                throws IOException {
+            if (sources != this.sources) {
+                this.sources = sources;
+                fds = new StructPollfd[sources.size() + 1];
+                for (int i = 0; i < fds.length; i++) {
+                    fds[i] = new StructPollfd();
+                    fds[i].fd = i == 0 ? wakeIn : sources.get(i - 1).polled.getFileDescriptor();
+                    fds[i].events = (short) (i == 0 ? OsConstants.POLLIN : OsConstants.POLLOUT);
+                }
+            }
+            try {
+                Os.poll(fds, -1);
+                if (fds[0].revents != 0) {
+                    woken.set(false);
+                    Os.read(wakeIn, drained, 0, 1);
+                }
+            } catch (ErrnoException ee) {
+                if (ee.errno == OsConstants.EINTR) {
+                    return;
+                }
+                throw new IOException("Could not poll USB connections!", ee);
+            } catch (InterruptedIOException iioe) {
+                return;
+            }
+            // writable: a request is waiting to be reaped; an error: the device is gone, which
+            // the reap reports
+            for (int i = 1; i < fds.length; i++) {
+                ready[i - 1] = fds[i].revents != 0;
+            }
+        }
+
+        @Override
+        public void wake() {
+            if (woken.compareAndSet(false, true)) {
+                try {
+                    Os.write(wakeOut, wakeByte, 0, 1);
+                } catch (ErrnoException | InterruptedIOException e) {
+                    Log.e(TAG, "Could not wake USB waiter.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Where the OnlyKey protocol lives on a device: the first HID interface with an interrupt IN
+     * and an interrupt OUT endpoint. The OnlyKey's keyboard interface has no OUT endpoint, and
+     * its raw HID interface comes before its FIDO one.
+     */
+    private static final class Layout {
+
+        private final int intf;
+        private final int in;
+        private final int out;
+        private final int inPacketSize;
+        private final int outPacketSize;
+
+        private Layout(final int intf, final int in, final int out, final int inPacketSize,
+                       final int outPacketSize) {
+            this.intf = intf;
+            this.in = in;
+            this.out = out;
+            this.inPacketSize = inPacketSize;
+            this.outPacketSize = outPacketSize;
+        }
+
+        /**
+         * Find the layout by walking the descriptors of a device.
+         *
+         * @param device The device.
+         * @return The layout.
+         * @throws IOException Thrown if the device has no such interface.
+         */
+        private static Layout scan(final UsbDevice device) throws IOException {
+            for (int i = 0; i < device.getInterfaceCount(); i++) {
+                final UsbInterface intf = device.getInterface(i);
+                if (intf.getInterfaceClass() != UsbConstants.USB_CLASS_HID) {
+                    continue;
+                }
+                final int in = find(intf, UsbConstants.USB_DIR_IN);
+                final int out = find(intf, UsbConstants.USB_DIR_OUT);
+                if (in >= 0 && out >= 0) {
+                    return new Layout(i, in, out, intf.getEndpoint(in).getMaxPacketSize(),
+                            intf.getEndpoint(out).getMaxPacketSize());
+                }
+            }
+            throw new IOException("USB device has no HID interface with interrupt IN and OUT"
+                    + " endpoints!");
+        }
+
+        /**
+         * @param intf      An interface.
+         * @param direction {@link UsbConstants#USB_DIR_IN} or {@link UsbConstants#USB_DIR_OUT}.
+         * @return The index of the first interrupt endpoint in the direction, or -1.
+         */
+        private static int find(final UsbInterface intf, final int direction) {
+            for (int e = 0; e < intf.getEndpointCount(); e++) {
+                if (isInterrupt(intf.getEndpoint(e), direction)) {
+                    return e;
+                }
+            }
+            return -1;
+        }
+
+        private static boolean isInterrupt(final UsbEndpoint ep, final int direction) {
+            return ep.getType() == UsbConstants.USB_ENDPOINT_XFER_INT
+                    && ep.getDirection() == direction;
+        }
+
+        /**
+         * Check the layout still holds for a device, by looking only at the interface and
+         * endpoints it names.
+         *
+         * @param device The device.
+         * @return Whether it holds.
+         */
+        private boolean fits(final UsbDevice device) {
+            if (intf >= device.getInterfaceCount()) {
+                return false;
+            }
+            final UsbInterface i = device.getInterface(intf);
+            if (i.getInterfaceClass() != UsbConstants.USB_CLASS_HID
+                    || Math.max(in, out) >= i.getEndpointCount()) {
+                return false;
+            }
+            final UsbEndpoint epIn = i.getEndpoint(in);
+            final UsbEndpoint epOut = i.getEndpoint(out);
+            return isInterrupt(epIn, UsbConstants.USB_DIR_IN)
+                    && isInterrupt(epOut, UsbConstants.USB_DIR_OUT)
+                    && epIn.getMaxPacketSize() == inPacketSize
+                    && epOut.getMaxPacketSize() == outPacketSize;
+        }
+    }
+
+    /**
+     * Wraps a {@link UsbRequest}, which carries the wrapper as its own client data.
+     */
+    private static final class UsbHidRequest implements Request {
+
+        private final UsbRequest request;
+
+        private
+        @Nullable
+        Object clientData = null;
+
+        private UsbHidRequest(final UsbRequest request) {
+            this.request = request;
+            request.setClientData(this);
+        }
+
+        @Override
+        public boolean queue(final ByteBuffer buffer, final int length) {
+            return request.queue(buffer, length);
+        }
+
+        @Override
+        public boolean cancel() {
+            return request.cancel();
+        }
+
+        @Override
+        public void close() {
+            request.close();
+        }
+
+        @Override
+        public
+        @Nullable
+        Object getClientData() {
+            return clientData;
+        }
+
+        @Override
+        public void setClientData(@Nullable final Object data) {
+            clientData = data;
+        }
+    }
+}
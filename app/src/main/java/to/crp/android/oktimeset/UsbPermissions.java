@@ -0,0 +1,169 @@
+package to.crp.android.oktimeset;
+
+import android.app.PendingIntent;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Asks the user for permission to use USB devices one dialog at a time.
+ * <p>
+ * Devices the app has permission for are answered at once. The others queue behind the one
+ * dialog on screen, and a device asked for again while queued is not queued twice. Each time a
+ * dialog is answered the queue is checked again before the next dialog is shown, so keys that
+ * were attached together and have been granted in the meantime, for instance by the user making
+ * the app the default for OnlyKeys, go through without a dialog of their own.
+ */
+final class UsbPermissions {
+
+    /**
+     * Told the answer for each device asked for.
+     */
+    interface Callback {
+
+        /**
+         * @param device  The device.
+         * @param granted Whether the app may use it.
+         */
+        void answered(UsbDevice device, boolean granted);
+    }
+
+    private final UsbManager manager;
+    private final PendingIntent intent;
+    private final Callback callback;
+
+    /**
+     * Devices waiting for a dialog, by device id, in the order asked for.
+     */
+    private final Map<Integer, UsbDevice> queued = new LinkedHashMap<>();
+
+    /**
+     * The device whose dialog is on screen, or null.
+     */
+    private
+    @Nullable
+    UsbDevice asking = null;
+
+    /**
+     * Create a tracker.
+     *
+     * @param manager  The USBManager.
+     * @param intent   The broadcast the system sends with each answer, which must be passed to
+     *                 {@link #onResult(UsbDevice, boolean)}.
+     * @param callback Told the answers.
+     */
+    UsbPermissions(final UsbManager manager, final PendingIntent intent, final Callback callback) {
+        this.manager = manager;
+        this.intent = intent;
+        this.callback = callback;
+    }
+
+    /**
+     * Ask for permission to use a device. May be called from any thread; the answer may come at
+     * once, on the calling thread.
+     *
+     * @param device The device.
+     */
+    void request(final UsbDevice device) {
+        if (manager.hasPermission(device)) {
+            callback.answered(device, true);
+            return;
+        }
+        synchronized (this) {
+            if (isAsking(device.getDeviceId())) {
+                return;
+            }
+            queued.put(device.getDeviceId(), device);
+        }
+        next();
+    }
+
+    /**
+     * Take the answer of a dialog.
+     *
+     * @param device  The device, from the broadcast.
+     * @param granted Whether permission was granted, from the broadcast.
+     */
+    void onResult(final UsbDevice device, final boolean granted) {
+        synchronized (this) {
+            if (!isAsking(device.getDeviceId())) {
+                return;
+            }
+            asking = null;
+        }
+        callback.answered(device, granted);
+        grantQueued();
+        next();
+    }
+
+    /**
+     * Forget a device, detached or otherwise no longer wanted. If its dialog is on screen the
+     * next one is shown; the system dismisses the dialog of a detached device.
+     *
+     * @param device The device.
+     */
+    void cancel(final UsbDevice device) {
+        synchronized (this) {
+            queued.remove(device.getDeviceId());
+            if (!isAsking(device.getDeviceId())) {
+                return;
+            }
+            asking = null;
+        }
+        next();
+    }
+
+    /**
+     * @return The number of devices waiting for a dialog, not counting the one on screen.
+     */
+    synchronized int getQueued() {
+        return queued.size();
+    }
+
+    private boolean isAsking(final int id) {
+        return asking != null && asking.getDeviceId() == id;
+    }
+
+    /**
+     * Answer the queued devices permission has been granted for since they were queued.
+     */
+    private void grantQueued() {
+        final List<UsbDevice> granted = new ArrayList<>();
+        synchronized (this) {
+            final Iterator<UsbDevice> it = queued.values().iterator();
+            while (it.hasNext()) {
+                final UsbDevice d = it.next();
+                if (manager.hasPermission(d)) {
+                    it.remove();
+                    granted.add(d);
+                }
+            }
+        }
+        for (final UsbDevice d : granted) {
+            callback.answered(d, true);
+        }
+    }
+
+    /**
+     * Show the dialog of the first queued device, unless one is on screen.
+     */
+    private void next() {
+        final UsbDevice d;
+        synchronized (this) {
+            if (asking != null || queued.isEmpty()) {
+                return;
+            }
+            final Iterator<UsbDevice> it = queued.values().iterator();
+            d = it.next();
+            it.remove();
+            asking = d;
+        }
+        manager.requestPermission(d, intent);
+    }
+}
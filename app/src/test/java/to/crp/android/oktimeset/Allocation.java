@@ -0,0 +1,43 @@
+package to.crp.android.oktimeset;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Bytes allocated per thread, where the JVM counts them (HotSpot does).
+ */
+final class Allocation {
+
+    private static final com.sun.management.ThreadMXBean bean = find();
+
+    private Allocation() {
+    }
+
+    private static com.sun.management.ThreadMXBean find() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        final com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+        if (!sun.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        sun.setThreadAllocatedMemoryEnabled(true);
+        return sun;
+    }
+
+    /**
+     * @return Whether allocation can be measured.
+     */
+    static boolean isSupported() {
+        return bean != null;
+    }
+
+    /**
+     * @param thread A live thread.
+     * @return The bytes the thread has allocated so far.
+     */
+    static long bytes(final Thread thread) {
+        return bean.getThreadAllocatedBytes(thread.getId());
+    }
+}
@@ -0,0 +1,246 @@
+package to.crp.android.oktimeset;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link AttachFilter}, alone and in front of a {@link ProvisioningPipeline}.
+ */
+public class AttachFilterTest {
+
+    private static final long SETTLE_MS = 20;
+
+    private static final int HUB = 16;
+
+    /**
+     * A bouncing connector: attach, detach, attach, attach, detach, attach, attach. Two bounces,
+     * a redelivery and a redelivery of the final attach.
+     */
+    private static final boolean[] STORM = {true, false, true, true, false, true, true};
+
+    private ScheduledExecutorService events;
+    private final Recorder sink = new Recorder();
+
+    @Before
+    public void setUp() {
+        events = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        events.shutdownNow();
+        assertTrue(events.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void bounceIsDroppedAsPair() throws Exception {
+        final AttachFilter<Integer> filter = new AttachFilter<>(sink, events, SETTLE_MS);
+        filter.attach(1, 1);
+        filter.detach(1, 1);
+        settle(filter);
+
+        assertEquals("[dropped 1]", sink.toString());
+        assertEquals(1, (int) onEvents(coalesced(filter)));
+    }
+
+    @Test
+    public void repeatedAttachIsDropped() throws Exception {
+        final AttachFilter<Integer> filter = new AttachFilter<>(sink, events, SETTLE_MS);
+        filter.attach(1, 1);
+        filter.attach(1, 1);
+        settle(filter);
+        filter.attach(1, 1);
+        settle(filter);
+
+        assertEquals("[dropped 1, attached 1, dropped 1]", sink.toString());
+        assertEquals(2, (int) onEvents(duplicates(filter)));
+    }
+
+    @Test
+    public void detachIsPassedOnOnlyAfterAttach() throws Exception {
+        final AttachFilter<Integer> filter = new AttachFilter<>(sink, events, SETTLE_MS);
+        filter.detach(1, 1);
+        filter.attach(2, 2);
+        settle(filter);
+        filter.detach(2, 2);
+        filter.attach(2, 2);
+        settle(filter);
+
+        assertEquals("[attached 2, detached 2, attached 2]", sink.toString());
+    }
+
+    /**
+     * The attach passed on carries when it was reported, not when a bounced or repeated one
+     * was, so the key's trace starts from it.
+     */
+    @Test
+    public void attachPassedOnKeepsItsReportTime() throws Exception {
+        final AttachFilter<Integer> filter = new AttachFilter<>(sink, events, SETTLE_MS);
+        filter.attach(1, 1, 10);
+        filter.detach(1, 1);
+        filter.attach(1, 1, 20);
+        filter.attach(1, 1, 30);
+        settle(filter);
+
+        assertEquals("[dropped 1, dropped 1, attached 1]", sink.toString());
+        assertEquals("[20]", sink.reported.toString());
+    }
+
+    /**
+     * A hub of keys through a bouncing connector gets exactly one session per key, and leaves no
+     * session open or pipeline thread running once every key is detached.
+     */
+    @Test
+    public void stormOpensOneSessionPerKey() throws Exception {
+        final OKIoLoop ioLoop = new OKIoLoop(OKIoLoop.DEFAULT_WORKERS);
+        final AtomicInteger opened = new AtomicInteger();
+        final EmulatedHub hub = new EmulatedHub(HUB) {
+            @Override
+            OnlyKey newKey(final EmulatedOnlyKey device) {
+                opened.incrementAndGet();
+                return super.newKey(device);
+            }
+        };
+        final ProvisioningPipeline<Integer> pipeline = hub.pipeline(ioLoop, HUB);
+        final AttachFilter<Integer> filter = new AttachFilter<>(new AttachFilter.Sink<Integer>() {
+            @Override
+            public void attached(final Integer device, final long reportedNanos) {
+                pipeline.add(device);
+            }
+
+            @Override
+            public void detached(final Integer device) {
+                pipeline.remove(device);
+            }
+
+            @Override
+            public void dropped(final Integer device) {
+            }
+        }, events, SETTLE_MS);
+
+        for (final boolean attach : STORM) {
+            for (int id = 0; id < HUB; id++) {
+                if (attach) {
+                    filter.attach(id, id);
+                } else {
+                    filter.detach(id, id);
+                }
+            }
+        }
+        hub.awaitActive(HUB);
+        settle(filter);
+        assertEquals(HUB, opened.get());
+        assertEquals(HUB, pipeline.getAdmitted());
+        for (final EmulatedOnlyKey d : hub.devices) {
+            assertFalse(d.isClosed());
+        }
+
+        for (int id = 0; id < HUB; id++) {
+            filter.detach(id, id);
+        }
+        hub.awaitClosed(TimeUnit.SECONDS.toMillis(1));
+        final long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (pipeline.getFinished() < pipeline.getAdmitted()) {
+            assertTrue("Keys left in the pipeline", System.nanoTime() - giveUp < 0);
+            Thread.sleep(1);
+        }
+        assertEquals(HUB, opened.get());
+
+        pipeline.close();
+        assertTrue(ioLoop.shutdown(OnlyKey.STOP_TIMEOUT_MS));
+        awaitNoThread("onlyKeyPipeline");
+    }
+
+    /**
+     * Wait until every attach reported has been passed on or dropped.
+     */
+    private static void settle(final AttachFilter<Integer> filter) throws InterruptedException {
+        final long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (filter.getPending() > 0) {
+            assertTrue("Attaches left pending", System.nanoTime() - giveUp < 0);
+            Thread.sleep(1);
+        }
+    }
+
+    private <T> T onEvents(final Callable<T> read)
+            throws InterruptedException, ExecutionException {
+        return events.submit(read).get();
+    }
+
+    private static Callable<Integer> coalesced(final AttachFilter<Integer> filter) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return filter.getCoalesced();
+            }
+        };
+    }
+
+    private static Callable<Integer> duplicates(final AttachFilter<Integer> filter) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return filter.getDuplicates();
+            }
+        };
+    }
+
+    private static void awaitNoThread(final String name) throws InterruptedException {
+        final long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (true) {
+            boolean running = false;
+            for (final Thread t : Thread.getAllStackTraces().keySet()) {
+                running |= t.getName().equals(name);
+            }
+            if (!running) {
+                return;
+            }
+            assertTrue(name + " threads left running", System.nanoTime() - giveUp < 0);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Records what is passed on, in order.
+     */
+    private static final class Recorder implements AttachFilter.Sink<Integer> {
+
+        private final List<String> seen = new ArrayList<>();
+        private final List<Long> reported = new ArrayList<>();
+
+        @Override
+        public synchronized void attached(final Integer device, final long reportedNanos) {
+            seen.add("attached " + device);
+            reported.add(reportedNanos);
+        }
+
+        @Override
+        public synchronized void detached(final Integer device) {
+            seen.add("detached " + device);
+        }
+
+        @Override
+        public synchronized void dropped(final Integer device) {
+            seen.add("dropped " + device);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return seen.toString();
+        }
+    }
+}
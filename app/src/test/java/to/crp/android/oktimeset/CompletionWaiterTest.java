@@ -0,0 +1,221 @@
+package to.crp.android.oktimeset;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link CompletionWaiter} over a poller that stands in for the USB file descriptors.
+ */
+public class CompletionWaiterTest {
+
+    private static final AtomicInteger TESTS = new AtomicInteger();
+
+    /**
+     * The waiter thread's name, which no other test's waiter has.
+     */
+    private final String name = "completionWaiterTest-" + TESTS.incrementAndGet();
+
+    private final Completions poller = new Completions();
+    private final CompletionWaiter<Connection> waiter =
+            new CompletionWaiter<>(poller, name, 64 * 1024);
+
+    /**
+     * One thread serves 1, 10 and then 100 connections, and ends once they are all removed,
+     * having released each of them.
+     */
+    @Test
+    public void oneThreadServesHundredConnections() throws InterruptedException {
+        final List<Connection> connections = new ArrayList<>();
+        for (final int n : new int[]{1, 10, 100}) {
+            while (connections.size() < n) {
+                final Connection c = new Connection();
+                connections.add(c);
+                waiter.add(c);
+            }
+            for (final Connection c : connections) {
+                poller.complete(c);
+            }
+            for (final Connection c : connections) {
+                c.awaitReaped(c.completed);
+            }
+            assertEquals(1, threads());
+        }
+
+        final Thread thread = waiter.getThread();
+        assertNotNull(thread);
+        for (final Connection c : connections) {
+            waiter.remove(c);
+        }
+        thread.join(TimeUnit.SECONDS.toMillis(1));
+        assertFalse(thread.isAlive());
+        assertNull(waiter.getThread());
+        for (final Connection c : connections) {
+            assertEquals(name, c.releasedOn);
+        }
+    }
+
+    /**
+     * A connection that fails is dropped and released, and the others are still served.
+     */
+    @Test
+    public void failedConnectionIsDropped() throws InterruptedException {
+        final Connection failing = new Connection();
+        final Connection other = new Connection();
+        waiter.add(failing);
+        waiter.add(other);
+
+        failing.failing = true;
+        poller.complete(failing);
+        failing.awaitReleased();
+
+        poller.complete(other);
+        other.awaitReaped(1);
+        assertNull(other.releasedOn);
+        waiter.remove(other);
+        other.awaitReleased();
+    }
+
+    /**
+     * A poll that fails tells every connection, and releases them.
+     */
+    @Test
+    public void pollErrorFailsEveryConnection() throws InterruptedException {
+        final Connection a = new Connection();
+        final Connection b = new Connection();
+        waiter.add(a);
+        waiter.add(b);
+        poller.fail(new IOException("Bad descriptor!"));
+        a.awaitReleased();
+        b.awaitReleased();
+        assertEquals("Bad descriptor!", a.error);
+        assertEquals("Bad descriptor!", b.error);
+    }
+
+    private int threads() {
+        int n = 0;
+        for (final Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals(name)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Reports a connection ready while it has completions not yet reaped.
+     */
+    private static final class Completions implements CompletionWaiter.Poller<Connection> {
+
+        private boolean woken = false;
+        private IOException error = null;
+
+        synchronized void complete(final Connection c) {
+            c.completed++;
+            c.pending++;
+            notifyAll();
+        }
+
+        synchronized void fail(final IOException ioe) {
+            error = ioe;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void poll(final List<Connection> sources, final boolean[] ready)
+                throws IOException {
+            while (true) {
+                if (error != null) {
+                    throw error;
+                }
+                boolean any = woken;
+                woken = false;
+                for (int i = 0; i < ready.length; i++) {
+                    ready[i] = sources.get(i).pending > 0;
+                    any |= ready[i];
+                }
+                if (any) {
+                    return;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    throw new IOException(ie);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void wake() {
+            woken = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * A connection whose completions are counted by the test's poller.
+     */
+    private final class Connection implements CompletionWaiter.Source {
+
+        private int completed = 0;
+        private int pending = 0;
+        private int reaped = 0;
+        private volatile boolean failing = false;
+        private volatile String error = null;
+        private volatile String releasedOn = null;
+
+        @Override
+        public boolean reap() {
+            synchronized (poller) {
+                pending--;
+                reaped++;
+                poller.notifyAll();
+            }
+            return !failing;
+        }
+
+        @Override
+        public void fail(final IOException ioe) {
+            error = ioe.getMessage();
+        }
+
+        @Override
+        public void release() {
+            synchronized (poller) {
+                releasedOn = Thread.currentThread().getName();
+                poller.notifyAll();
+            }
+        }
+
+        void awaitReaped(final int n) throws InterruptedException {
+            final long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            synchronized (poller) {
+                while (reaped < n) {
+                    assertTrue("Completions not reaped", System.nanoTime() - giveUp < 0);
+                    poller.wait(10);
+                }
+            }
+        }
+
+        void awaitReleased() throws InterruptedException {
+            final long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            synchronized (poller) {
+                while (releasedOn == null) {
+                    assertTrue("Not released", System.nanoTime() - giveUp < 0);
+                    poller.wait(10);
+                }
+            }
+            assertEquals(name, releasedOn);
+        }
+    }
+}
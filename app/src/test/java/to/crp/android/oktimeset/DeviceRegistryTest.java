@@ -0,0 +1,61 @@
+package to.crp.android.oktimeset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link DeviceRegistry}.
+ */
+public class DeviceRegistryTest {
+
+    @Test
+    public void replacesClosingEntryOnly() {
+        final DeviceRegistry<Device> registry = new DeviceRegistry<>(4);
+        final Device first = new Device(1001);
+        assertSame(first, registry.putIfAbsent(first));
+        assertSame(first, registry.putIfAbsent(new Device(1001)));
+        assertSame(first, registry.get(1001));
+
+        assertTrue(first.close());
+        final Device second = new Device(1001);
+        assertSame(second, registry.putIfAbsent(second));
+        // the old entry's teardown finishing late leaves the new one alone
+        assertEquals(false, registry.remove(first));
+        assertSame(second, registry.get(1001));
+        assertTrue(registry.remove(second));
+        assertNull(registry.get(1001));
+    }
+
+    /**
+     * A full registry turns new ids away, and still serves the ids it holds, even with no
+     * entry registered for them at the moment.
+     */
+    @Test
+    public void fullRegistryTurnsNewIdsAway() {
+        final DeviceRegistry<Device> registry = new DeviceRegistry<>(4);
+        for (int id = 1; id <= 4; id++) {
+            final Device d = new Device(id);
+            assertSame(d, registry.putIfAbsent(d));
+            assertTrue(registry.remove(d));
+        }
+
+        assertNull(registry.putIfAbsent(new Device(5)));
+        assertNull(registry.get(5));
+        assertEquals(false, registry.remove(new Device(5)));
+
+        final Device back = new Device(3);
+        assertSame(back, registry.putIfAbsent(back));
+        assertSame(back, registry.get(3));
+        assertEquals(1, registry.values().size());
+    }
+
+    private static final class Device extends DeviceRegistry.Entry {
+        private Device(final int id) {
+            super(id);
+        }
+    }
+}
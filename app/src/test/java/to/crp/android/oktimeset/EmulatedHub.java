@@ -0,0 +1,93 @@
+package to.crp.android.oktimeset;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Emulated devices by id, locked and reporting every millisecond. Grants every permission.
+ */
+class EmulatedHub implements ProvisioningPipeline.Host<Integer> {
+
+    final EmulatedOnlyKey[] devices;
+
+    private ProvisioningPipeline<Integer> pipeline;
+
+    /**
+     * @param size The number of devices, with ids from 0.
+     */
+    EmulatedHub(final int size) {
+        devices = new EmulatedOnlyKey[size];
+        for (int i = 0; i < size; i++) {
+            devices[i] = new EmulatedOnlyKey(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * @param ioLoop The I/O loop to service the keys on.
+     * @param unlock How many keys may wait for unlock at once.
+     * @return A pipeline for the hub, taking one key at a time through the other stages.
+     */
+    ProvisioningPipeline<Integer> pipeline(final OKIoLoop ioLoop, final int unlock) {
+        pipeline = new ProvisioningPipeline<>(this, ioLoop, 1, 2, unlock, 1, 1);
+        return pipeline;
+    }
+
+    /**
+     * @param device A device.
+     * @return A session on it, not opened.
+     */
+    OnlyKey newKey(final EmulatedOnlyKey device) {
+        return new OnlyKey(device);
+    }
+
+    /**
+     * Wait for devices 0 to n - 1 to have their sessions serviced.
+     */
+    void awaitActive(final int n) throws InterruptedException {
+        final long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        for (int id = 0; id < n; id++) {
+            while (pipeline.getState(id) != DeviceRegistry.ACTIVE) {
+                assertTrue("Key " + id + " not active", System.nanoTime() - giveUp < 0);
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    /**
+     * Wait for every device to be closed.
+     */
+    void awaitClosed(final long timeoutMs) throws InterruptedException {
+        final long giveUp = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (int id = 0; id < devices.length; id++) {
+            while (!devices[id].isClosed()) {
+                assertTrue("Device " + id + " not closed", System.nanoTime() - giveUp < 0);
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @Override
+    public int getId(final Integer device) {
+        return device;
+    }
+
+    @Override
+    public void requestPermission(final Integer device) {
+        pipeline.permitted(device, true);
+    }
+
+    @Override
+    public OnlyKey open(final Integer device) throws IOException {
+        return newKey(devices[device]);
+    }
+
+    @Override
+    public void finished(final Integer device, final ProvisioningPipeline.Outcome outcome) {
+    }
+
+    @Override
+    public void idle() {
+    }
+}
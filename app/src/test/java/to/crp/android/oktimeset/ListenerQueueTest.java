@@ -0,0 +1,151 @@
+package to.crp.android.oktimeset;
+
+import android.support.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ListenerQueue} overflowing, delivered by hand.
+ */
+public class ListenerQueueTest {
+
+    private final OnlyKey key = new OnlyKey(new EmulatedOnlyKey(0));
+    private final Manual executor = new Manual();
+    private final Delivered delivered = new Delivered();
+
+    /**
+     * The latest event of each type is kept, in the place it arrived, and an event that finds
+     * room once delivery has started comes after the parked ones.
+     */
+    @Test
+    public void coalesceKeepsArrivalOrder() {
+        key.addListener(delivered, executor, ListenerQueue.Overflow.COALESCE);
+        fill();
+        key.notifyListeners(new OKEvent(key, OKEvent.OKEType.SET_LOCKED, true));
+        key.notifyListeners(message("m64"));
+        key.notifyListeners(new OKEvent(key, OKEvent.OKEType.SET_INITIALIZED, true));
+        key.notifyListeners(new OKEvent(key, OKEvent.OKEType.SET_LOCKED, false));
+        key.notifyListeners(message("m65"));
+        delivered.then = message("m66");
+        executor.runAll();
+
+        assertEquals(expected("SET_INITIALIZED true", "SET_LOCKED false", "m65", "m66"),
+                delivered.toString());
+    }
+
+    /**
+     * Events that do not fit are dropped, the error is not, and an event that finds room once
+     * delivery has started is delivered after it.
+     */
+    @Test
+    public void dropKeepsArrivalOrder() {
+        key.addListener(delivered, executor, ListenerQueue.Overflow.DROP);
+        fill();
+        key.notifyListeners(message("m64"));
+        key.fail(new IOException("Unplugged!"));
+        delivered.then = message("m65");
+        executor.runAll();
+
+        assertEquals(expected("ERROR", "m65"), delivered.toString());
+    }
+
+    /**
+     * The event that does not fit fails the session, whose error is delivered right after the
+     * events in the ring, and before one that finds room once delivery has started.
+     */
+    @Test
+    public void failKeepsArrivalOrder() {
+        key.addListener(delivered, executor, ListenerQueue.Overflow.FAIL);
+        fill();
+        key.notifyListeners(message("m64"));
+        assertTrue(KeyState.failed(key.getState()));
+        delivered.then = message("m65");
+        executor.runAll();
+
+        assertEquals(expected("ERROR", "m65"), delivered.toString());
+    }
+
+    /**
+     * Fill the ring with messages m0 on.
+     */
+    private void fill() {
+        for (int i = 0; i < ListenerQueue.DEFAULT_CAPACITY; i++) {
+            key.notifyListeners(message("m" + i));
+        }
+        assertEquals(1, executor.tasks.size());
+    }
+
+    private OKEvent message(final String text) {
+        return new OKEvent(key, OKEvent.OKEType.MSG, text);
+    }
+
+    /**
+     * @param after What is delivered after the ring.
+     * @return The delivery of a full ring of messages, then of the given events.
+     */
+    private static String expected(final String... after) {
+        final List<String> all = new ArrayList<>();
+        for (int i = 0; i < ListenerQueue.DEFAULT_CAPACITY; i++) {
+            all.add("m" + i);
+        }
+        all.addAll(Arrays.asList(after));
+        return all.toString();
+    }
+
+    /**
+     * Runs what is submitted only when told to.
+     */
+    private static final class Manual implements Executor {
+
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(final Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    /**
+     * Records what is delivered, and once the first event is delivered, notifies another, as the
+     * servicing thread would while the listener is busy.
+     */
+    private final class Delivered extends RecordingListener {
+
+        @Nullable
+        private OKEvent then;
+
+        @Override
+        public void okMessage(final OKEvent event) {
+            super.okMessage(event);
+            if ("m0".equals(event.getStringVal()) && then != null) {
+                final OKEvent e = then;
+                then = null;
+                key.notifyListeners(e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            final List<String> seen = new ArrayList<>();
+            for (final OKEvent e : getEvents()) {
+                seen.add(e.getType() == OKEvent.OKEType.MSG ? e.getStringVal() : describe(e));
+            }
+            return seen.toString();
+        }
+    }
+}
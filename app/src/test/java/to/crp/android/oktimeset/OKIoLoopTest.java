@@ -0,0 +1,146 @@
+package to.crp.android.oktimeset;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link OKIoLoop} servicing emulated keys.
+ */
+public class OKIoLoopTest {
+
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    private static final long WINDOW_MS = 400;
+
+    private OKIoLoop ioLoop;
+    private final List<OnlyKey> keys = new ArrayList<>();
+    private final List<EmulatedOnlyKey> devices = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        ioLoop = new OKIoLoop(OKIoLoop.DEFAULT_WORKERS);
+    }
+
+    @After
+    public void tearDown() {
+        for (final OnlyKey k : keys) {
+            k.stop(OnlyKey.STOP_TIMEOUT_MS);
+        }
+        assertTrue(ioLoop.shutdown(OnlyKey.STOP_TIMEOUT_MS));
+    }
+
+    /**
+     * From 1 to 100 keys reporting every 2ms, the loop keeps its threads, every key gets its
+     * reports handled, and the workers allocate nothing once the keys are registered.
+     */
+    @Test
+    public void scalesFromOneToHundredKeys() throws IOException, InterruptedException {
+        Assume.assumeTrue(Allocation.isSupported());
+
+        int threads = -1;
+        for (final int n : new int[]{1, 10, 100}) {
+            attach(n - keys.size());
+            // settle: every key registered, JIT warmed up
+            Thread.sleep(WINDOW_MS);
+
+            final long[] reports = reportCounts();
+            final long allocated = workerAllocation();
+            Thread.sleep(WINDOW_MS);
+            final long workerAllocated = workerAllocation() - allocated;
+            final long[] after = reportCounts();
+
+            final int ours = ourThreads();
+            if (threads < 0) {
+                threads = ours;
+            }
+            assertEquals(n + " keys", threads, ours);
+            assertTrue(n + " keys: workers allocated " + workerAllocated + " bytes",
+                    workerAllocated < 16 * 1024);
+
+            final long expected = TimeUnit.MILLISECONDS.toNanos(WINDOW_MS) / REPORT_INTERVAL_NANOS;
+            for (int i = 0; i < n; i++) {
+                final long got = after[i] - reports[i];
+                assertTrue(n + " keys: key " + i + " got " + got + " of " + expected + " reports",
+                        got >= expected / 2);
+            }
+        }
+    }
+
+    /**
+     * A write's completion is handled straight away, however many idle keys share the loop.
+     */
+    @Test
+    public void writeCompletesWithoutPollingDelay() throws IOException, InterruptedException {
+        final EmulatedOnlyKey device = new EmulatedOnlyKey(TimeUnit.SECONDS.toNanos(10));
+        final OnlyKey key = new OnlyKey(device);
+        keys.add(key);
+        ioLoop.register(key);
+        attach(100);
+        Thread.sleep(100);
+
+        for (int i = 0; i < 20; i++) {
+            key.setTime();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (device.getTimeSetCount() <= i && System.nanoTime() - deadline < 0) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(1);
+        }
+        assertEquals(20, device.getTimeSetCount());
+        assertTrue("Write latency " + key.getOutLatencyNanos() + "ns",
+                key.getOutLatencyNanos() < TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private void attach(final int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            final EmulatedOnlyKey device = new EmulatedOnlyKey(REPORT_INTERVAL_NANOS);
+            final OnlyKey key = new OnlyKey(device);
+            devices.add(device);
+            keys.add(key);
+            ioLoop.register(key);
+        }
+    }
+
+    private long[] reportCounts() {
+        final long[] counts = new long[devices.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = devices.get(i).getReportCount();
+        }
+        return counts;
+    }
+
+    /**
+     * @return The bytes allocated by the loop's workers so far.
+     */
+    private static long workerAllocation() {
+        long bytes = 0;
+        for (final Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("onlyKeyIo-")) {
+                bytes += Allocation.bytes(t);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The number of live threads started by the loop, the sessions and the emulator.
+     */
+    private static int ourThreads() {
+        int n = 0;
+        for (final Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("onlyKey") || t.getName().startsWith("emulatedOnlyKey")) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
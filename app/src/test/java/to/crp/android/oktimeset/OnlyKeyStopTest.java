@@ -0,0 +1,125 @@
+package to.crp.android.oktimeset;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link OnlyKey#stop(long)} tears a session down within {@link OnlyKey#STOP_TIMEOUT_MS}, closes
+ * its transport and leaves no thread behind, however the session is serviced.
+ */
+public class OnlyKeyStopTest {
+
+    private static final long STOP_TIMEOUT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(OnlyKey.STOP_TIMEOUT_MS);
+
+    @Test
+    public void stopOnIoLoop() throws IOException, InterruptedException {
+        final Set<Thread> before = running("onlyKeyIo-");
+        final OKIoLoop ioLoop = new OKIoLoop(OKIoLoop.DEFAULT_WORKERS);
+        final EmulatedOnlyKey device = new EmulatedOnlyKey(TimeUnit.MILLISECONDS.toNanos(1));
+        final OnlyKey key = new OnlyKey(device);
+        final Reported reported = new Reported();
+        key.addListener(reported);
+        ioLoop.register(key);
+        assertTrue(reported.first.await(1, TimeUnit.SECONDS));
+
+        final long nanos = key.stop(OnlyKey.STOP_TIMEOUT_MS);
+        assertTrue("Stopped in " + nanos + "ns", nanos < STOP_TIMEOUT_NANOS);
+        assertTrue(key.isClosed());
+        assertTrue(device.isClosed());
+
+        assertTrue(ioLoop.shutdown(OnlyKey.STOP_TIMEOUT_MS));
+        assertEquals(before, running("onlyKeyIo-"));
+    }
+
+    @Test
+    public void stopOnOwnThread() throws IOException, InterruptedException {
+        final EmulatedOnlyKey device = new EmulatedOnlyKey(TimeUnit.MILLISECONDS.toNanos(1));
+        final OnlyKey key = new OnlyKey(device);
+        final Reported reported = new Reported();
+        key.addListener(reported);
+        key.open();
+        final Thread thread = new Thread(key, "onlyKeyStopTest");
+        thread.start();
+        assertTrue(reported.first.await(1, TimeUnit.SECONDS));
+
+        final long nanos = key.stop(OnlyKey.STOP_TIMEOUT_MS);
+        assertTrue("Stopped in " + nanos + "ns", nanos < STOP_TIMEOUT_NANOS);
+        assertTrue(device.isClosed());
+        thread.join(OnlyKey.STOP_TIMEOUT_MS);
+        assertFalse(thread.isAlive());
+    }
+
+    /**
+     * A servicing thread stuck in a listener does not hold stop up past its timeout, and the
+     * transport is closed all the same.
+     */
+    @Test
+    public void stopWhileServicingThreadIsStuck() throws IOException, InterruptedException {
+        final EmulatedOnlyKey device = new EmulatedOnlyKey(TimeUnit.MILLISECONDS.toNanos(1));
+        final OnlyKey key = new OnlyKey(device);
+        final Reported reported = new Reported();
+        final CountDownLatch release = new CountDownLatch(1);
+        key.addListener(reported);
+        key.addListener(new RecordingListener() {
+            @Override
+            public void okSetInitialized(final OKEvent event) {
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        key.open();
+        final Thread thread = new Thread(key, "onlyKeyStopTest");
+        thread.start();
+        assertTrue(reported.first.await(1, TimeUnit.SECONDS));
+
+        final long nanos = key.stop(OnlyKey.STOP_TIMEOUT_MS);
+        assertTrue("Stopped in " + nanos + "ns",
+                nanos < STOP_TIMEOUT_NANOS + TimeUnit.MILLISECONDS.toNanos(25));
+        assertTrue(key.isClosed());
+        assertTrue(device.isClosed());
+
+        release.countDown();
+        thread.join(OnlyKey.STOP_TIMEOUT_MS);
+        assertFalse(thread.isAlive());
+    }
+
+    /**
+     * @param prefix A thread name prefix.
+     * @return The live threads whose names start with it.
+     */
+    private static Set<Thread> running(final String prefix) {
+        final Set<Thread> threads = new HashSet<>();
+        for (final Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith(prefix)) {
+                threads.add(t);
+            }
+        }
+        return threads;
+    }
+
+    /**
+     * Counts down on the first status report handled.
+     */
+    private static final class Reported extends RecordingListener {
+
+        private final CountDownLatch first = new CountDownLatch(1);
+
+        @Override
+        public void okSetInitialized(final OKEvent event) {
+            first.countDown();
+        }
+    }
+}
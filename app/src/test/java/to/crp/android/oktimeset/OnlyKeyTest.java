@@ -0,0 +1,86 @@
+package to.crp.android.oktimeset;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link OnlyKey} sessions against an {@link EmulatedOnlyKey}.
+ */
+public class OnlyKeyTest {
+
+    private EmulatedOnlyKey device;
+    private OnlyKey key;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() throws IOException {
+        device = new EmulatedOnlyKey(0);
+        key = new OnlyKey(device);
+        listener = new RecordingListener();
+        key.addListener(listener);
+        key.open();
+    }
+
+    @After
+    public void tearDown() {
+        key.close();
+    }
+
+    /**
+     * The receive path reuses its requests and buffers, so once warmed up the servicing thread
+     * allocates nothing however many reports it handles, parsed or skipped as repeats.
+     */
+    @Test
+    public void receiveDoesNotAllocate() throws IOException {
+        Assume.assumeTrue(Allocation.isSupported());
+        final Thread self = Thread.currentThread();
+
+        receive(20000);
+        final long reports = device.getReportCount();
+        final long before = Allocation.bytes(self);
+        receive(20000);
+        final long allocated = Allocation.bytes(self) - before;
+        final long received = device.getReportCount() - reports;
+
+        assertTrue(received >= 20000);
+        // the counter reads themselves may allocate a little, a packet's worth would be megabytes
+        assertTrue("Allocated " + allocated + " bytes for " + received + " packets",
+                allocated < 1024);
+    }
+
+    @Test
+    public void notifiesEachStateChangeOnce() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            key.poll(0);
+        }
+        device.setLocked(false);
+        for (int i = 0; i < 100; i++) {
+            key.poll(0);
+        }
+
+        assertEquals("[SET_INITIALIZED true]", listener.events(OKEvent.OKEType.SET_INITIALIZED));
+        assertEquals("[SET_LOCKED false]", listener.events(OKEvent.OKEType.SET_LOCKED));
+    }
+
+    /**
+     * Poll the key, flipping the emulated lock every 64 polls so status reports are parsed as
+     * well as skipped.
+     *
+     * @param polls The number of polls.
+     */
+    private void receive(final int polls) throws IOException {
+        for (int i = 0; i < polls; i++) {
+            if ((i & 63) == 0) {
+                device.setLocked((i & 64) == 0);
+            }
+            key.poll(0);
+        }
+    }
+}
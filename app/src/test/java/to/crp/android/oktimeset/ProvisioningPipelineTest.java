@@ -0,0 +1,172 @@
+package to.crp.android.oktimeset;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ProvisioningPipeline} driving emulated keys.
+ */
+public class ProvisioningPipelineTest {
+
+    private static final int HUB = 8;
+
+    private OKIoLoop ioLoop;
+
+    @Before
+    public void setUp() {
+        ioLoop = new OKIoLoop(OKIoLoop.DEFAULT_WORKERS);
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(ioLoop.shutdown(OnlyKey.STOP_TIMEOUT_MS));
+    }
+
+    /**
+     * Closing stops the sessions in parallel off the calling thread, even when their servicing
+     * threads are stuck and each stop has to wait out its timeout.
+     */
+    @Test
+    public void closeStopsKeysInParallel() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final EmulatedHub hub = new EmulatedHub(HUB) {
+            @Override
+            OnlyKey newKey(final EmulatedOnlyKey device) {
+                final OnlyKey key = super.newKey(device);
+                // the unlock jams the worker servicing the key, and with it the others
+                key.addListener(new RecordingListener() {
+                    @Override
+                    public void okSetLocked(final OKEvent event) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+                return key;
+            }
+        };
+        final ProvisioningPipeline<Integer> pipeline = hub.pipeline(ioLoop, HUB);
+        for (int id = 0; id < HUB; id++) {
+            pipeline.add(id);
+        }
+        hub.awaitActive(HUB);
+        for (final EmulatedOnlyKey d : hub.devices) {
+            d.setLocked(false);
+        }
+        Thread.sleep(20);
+
+        final long start = System.nanoTime();
+        pipeline.close();
+        final long closeNanos = System.nanoTime() - start;
+        assertTrue("close() took " + closeNanos + "ns",
+                closeNanos < TimeUnit.MILLISECONDS.toNanos(OnlyKey.STOP_TIMEOUT_MS));
+
+        // one stop timeout, not one per key
+        hub.awaitClosed(2 * OnlyKey.STOP_TIMEOUT_MS);
+        release.countDown();
+    }
+
+    /**
+     * A device whose id the registry has no room for leaves the pipeline FAILED, and is counted,
+     * so the pipeline still goes idle.
+     */
+    @Test
+    public void deviceBeyondRegistryCapacityFails() {
+        final Unanswered host = new Unanswered();
+        final ProvisioningPipeline<Integer> pipeline = new ProvisioningPipeline<>(host, ioLoop,
+                ProvisioningPipeline.REGISTRY_CAPACITY, 1, 1, 1, 1);
+        final int full = ProvisioningPipeline.REGISTRY_CAPACITY;
+        for (int id = 0; id < full; id++) {
+            pipeline.add(id);
+        }
+        assertEquals(full, host.asked.size());
+        assertEquals("[]", host.finished.toString());
+
+        pipeline.add(full);
+        assertEquals("[" + full + " FAILED]", host.finished.toString());
+        assertEquals(-1, pipeline.getState(full));
+        assertEquals(full + 1, pipeline.getAdmitted());
+        assertEquals(1, pipeline.getFinished());
+
+        // a device already in the pipeline is served as before
+        pipeline.permitted(0, false);
+        assertEquals("[" + full + " FAILED, 0 DENIED]", host.finished.toString());
+        pipeline.close();
+    }
+
+    /**
+     * A key let into a stage that hands off to a pipeline thread after close() has shut them down
+     * leaves the pipeline there and then, rather than throwing at the thread that moved it on.
+     */
+    @Test
+    public void handOffAfterCloseTearsDownInline() {
+        final Unanswered host = new Unanswered() {
+            @Override
+            public void requestPermission(final Integer device) {
+                super.requestPermission(device);
+                if (device == 1) {
+                    // stands in for close() on another thread, between key 0 being let into
+                    // OPEN and its open being handed off
+                    pipeline.close();
+                }
+            }
+        };
+        host.pipeline = new ProvisioningPipeline<>(host, ioLoop, 1, 1, 1, 1, 1);
+        host.pipeline.add(0);
+        host.pipeline.add(1);
+        assertEquals("[0]", host.asked.toString());
+
+        host.pipeline.permitted(0, true);
+        assertEquals("[0, 1]", host.asked.toString());
+        assertEquals(-1, host.pipeline.getState(0));
+        assertEquals(-1, host.pipeline.getState(1));
+        assertEquals("[]", host.finished.toString());
+    }
+
+    /**
+     * Never answers permission requests, so keys stay in the first stage.
+     */
+    private static class Unanswered implements ProvisioningPipeline.Host<Integer> {
+
+        ProvisioningPipeline<Integer> pipeline;
+
+        private final List<Integer> asked = new ArrayList<>();
+        private final List<String> finished = new ArrayList<>();
+
+        @Override
+        public int getId(final Integer device) {
+            return device;
+        }
+
+        @Override
+        public void requestPermission(final Integer device) {
+            asked.add(device);
+        }
+
+        @Override
+        public OnlyKey open(final Integer device) throws IOException {
+            throw new IOException("Not opened!");
+        }
+
+        @Override
+        public void finished(final Integer device, final ProvisioningPipeline.Outcome outcome) {
+            finished.add(device + " " + outcome);
+        }
+
+        @Override
+        public void idle() {
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package to.crp.android.oktimeset;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Listener recording the events it is told of, in order, from any thread.
+ */
+class RecordingListener implements OKListener {
+
+    private final List<OKEvent> events = new ArrayList<>();
+
+    /**
+     * @return The events told so far.
+     */
+    synchronized List<OKEvent> getEvents() {
+        return new ArrayList<>(events);
+    }
+
+    /**
+     * @param type An event type.
+     * @return The events of the type told so far, as "[TYPE value, ...]".
+     */
+    synchronized String events(final OKEvent.OKEType type) {
+        final List<String> found = new ArrayList<>();
+        for (final OKEvent e : events) {
+            if (e.getType() == type) {
+                found.add(describe(e));
+            }
+        }
+        return found.toString();
+    }
+
+    /**
+     * @param e An event.
+     * @return "TYPE value", the value being the event's boolean for state changes.
+     */
+    static String describe(final OKEvent e) {
+        switch (e.getType()) {
+            case SET_INITIALIZED:
+            case SET_LOCKED:
+                return e.getType() + " " + e.getBoolVal();
+            default:
+                return e.getType().toString();
+        }
+    }
+
+    private synchronized void add(final OKEvent event) {
+        events.add(event);
+    }
+
+    @Override
+    public void okError(final OKEvent event) {
+        add(event);
+    }
+
+    @Override
+    public void okMessage(final OKEvent event) {
+        add(event);
+    }
+
+    @Override
+    public void okSetInitialized(final OKEvent event) {
+        add(event);
+    }
+
+    @Override
+    public void okSetTime(final OKEvent event) {
+        add(event);
+    }
+
+    @Override
+    public void okSetLocked(final OKEvent event) {
+        add(event);
+    }
+}
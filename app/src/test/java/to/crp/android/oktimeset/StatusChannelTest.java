@@ -0,0 +1,231 @@
+package to.crp.android.oktimeset;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link StatusChannel} against a virtual 60 Hz display.
+ */
+public class StatusChannelTest {
+
+    private static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos(1) / 60;
+
+    /**
+     * An unlock burst: INITIALIZED, LOCKED, UNLOCKED and time set, two milliseconds apart.
+     */
+    private static final long[] OFFSETS = {
+            0, TimeUnit.MILLISECONDS.toNanos(2), TimeUnit.MILLISECONDS.toNanos(4),
+            TimeUnit.MILLISECONDS.toNanos(6)};
+
+    /**
+     * How far along the frame each burst starts after the one before, so bursts start at every
+     * point of the frame.
+     */
+    private static final long PHASE_STEP_NANOS = TimeUnit.MILLISECONDS.toNanos(7);
+
+    private static final String TIME_SET = "OnlyKey time set!";
+
+    private final List<String> shown = new ArrayList<>();
+    private int requests = 0;
+    private StatusChannel<Object, String> channel;
+
+    /**
+     * Virtual time, and when the next frame is due.
+     */
+    private long now = 0;
+    private long nextFrame = FRAME_NANOS;
+    private boolean requested = false;
+
+    @Before
+    public void setUp() {
+        channel = new StatusChannel<>(new StatusChannel.Frames() {
+            @Override
+            public void request() {
+                requests++;
+                requested = true;
+            }
+        }, new StatusChannel.Sink<Object, String>() {
+            @Override
+            public void show(final Object key, final String status) {
+                shown.add(key + ": " + status);
+            }
+        });
+    }
+
+    @Test
+    public void showsLatestStatusPerKeyOncePerFrame() {
+        final String a = "a";
+        final String b = "b";
+        channel.post(a, "locked");
+        channel.post(b, "locked");
+        channel.post(a, "unlocked");
+        channel.post(a, "time set");
+        assertEquals(1, requests);
+        assertEquals("[]", shown.toString());
+
+        channel.frame();
+        assertEquals("[b: locked, a: time set]", shown.toString());
+        assertEquals(4, channel.getPosted());
+        assertEquals(1, channel.getFrames());
+
+        // nothing posted, nothing shown
+        channel.frame();
+        assertEquals(1, channel.getFrames());
+
+        channel.post(b, "time set");
+        assertEquals(2, requests);
+        channel.frame();
+        assertEquals("[b: locked, a: time set, b: time set]", shown.toString());
+    }
+
+    @Test
+    public void clearDropsUnshownStatuses() {
+        channel.post("a", "locked");
+        channel.clear();
+        channel.frame();
+        assertEquals("[]", shown.toString());
+        assertEquals(0, channel.getFrames());
+
+        channel.post("a", "unlocked");
+        assertEquals(2, requests);
+        channel.frame();
+        assertEquals("[a: unlocked]", shown.toString());
+    }
+
+    /**
+     * Each unlock burst is shown in at most two frames rather than four fades, whatever point of
+     * the frame it starts at, and ends on the time set.
+     */
+    @Test
+    public void unlockBurstsShowInOneOrTwoFrames() {
+        final OnlyKey key = new OnlyKey(new EmulatedOnlyKey(0));
+        key.addListener(new StatusPoster(channel));
+        final OKEvent[] burst = burst(key);
+
+        final int bursts = 1000;
+        for (int n = 0; n < bursts; n++) {
+            final long frames = channel.getFrames();
+            final int from = shown.size();
+            unlockBurst(key, burst);
+            final long burstFrames = channel.getFrames() - frames;
+            assertTrue("Burst " + n + " in " + burstFrames + " frames",
+                    burstFrames >= 1 && burstFrames <= 2);
+            assertEquals(burstFrames, shown.size() - from);
+            assertEquals(key + ": " + TIME_SET, shown.get(shown.size() - 1));
+        }
+        assertEquals(4L * bursts, channel.getPosted());
+        assertEquals(requests, channel.getFrames());
+    }
+
+    @Test
+    public void postingDoesNotAllocate() {
+        Assume.assumeTrue(Allocation.isSupported());
+        channel = new StatusChannel<>(new StatusChannel.Frames() {
+            @Override
+            public void request() {
+                requested = true;
+            }
+        }, new StatusChannel.Sink<Object, String>() {
+            @Override
+            public void show(final Object key, final String status) {
+            }
+        });
+        final OnlyKey key = new OnlyKey(new EmulatedOnlyKey(0));
+        key.addListener(new StatusPoster(channel));
+        final OKEvent[] burst = burst(key);
+
+        final Thread self = Thread.currentThread();
+        for (int n = 0; n < 20000; n++) {
+            unlockBurst(key, burst);
+        }
+        final long before = Allocation.bytes(self);
+        for (int n = 0; n < 20000; n++) {
+            unlockBurst(key, burst);
+        }
+        final long allocated = Allocation.bytes(self) - before;
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static OKEvent[] burst(final OnlyKey key) {
+        return new OKEvent[]{
+                new OKEvent(key, OKEvent.OKEType.SET_INITIALIZED, true),
+                new OKEvent(key, OKEvent.OKEType.SET_LOCKED, true),
+                new OKEvent(key, OKEvent.OKEType.SET_LOCKED, false),
+                new OKEvent(key, OKEvent.OKEType.SET_TIME)};
+    }
+
+    /**
+     * Notify an unlock burst, then let the last status show.
+     */
+    private void unlockBurst(final OnlyKey key, final OKEvent[] burst) {
+        final long start = now + PHASE_STEP_NANOS;
+        for (int i = 0; i < burst.length; i++) {
+            advance(start + OFFSETS[i]);
+            key.notifyListeners(burst[i]);
+        }
+        advance(start + OFFSETS[OFFSETS.length - 1] + FRAME_NANOS);
+    }
+
+    /**
+     * Move virtual time on, running the frames that fall due.
+     *
+     * @param to The new time.
+     */
+    private void advance(final long to) {
+        while (nextFrame <= to) {
+            if (requested) {
+                requested = false;
+                channel.frame();
+            }
+            nextFrame += FRAME_NANOS;
+        }
+        now = to;
+    }
+
+    /**
+     * Posts the status of each event, from messages looked up once, like the dashboard.
+     */
+    private static final class StatusPoster implements OKListener {
+
+        private final StatusChannel<Object, String> channel;
+
+        StatusPoster(final StatusChannel<Object, String> channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void okError(final OKEvent event) {
+            channel.post(event.getKey(), "Error!");
+        }
+
+        @Override
+        public void okMessage(final OKEvent event) {
+            channel.post(event.getKey(), event.getStringVal());
+        }
+
+        @Override
+        public void okSetInitialized(final OKEvent event) {
+            channel.post(event.getKey(),
+                    event.getBoolVal() ? "Waiting for unlock..." : "Device setup required!");
+        }
+
+        @Override
+        public void okSetTime(final OKEvent event) {
+            channel.post(event.getKey(), TIME_SET);
+        }
+
+        @Override
+        public void okSetLocked(final OKEvent event) {
+            channel.post(event.getKey(),
+                    event.getBoolVal() ? "Device is locked." : "Device is unlocked.");
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package to.crp.android.oktimeset;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link StatusMatcher} checked against the decode and {@code String.contains()} chain it
+ * replaced.
+ */
+public class StatusMatcherTest {
+
+    private static final String[] STATUS =
+            {"UNINITIALIZED", "INITIALIZED", "UNLOCKED", "LOCKED"};
+
+    /**
+     * Tokens sharing first bytes and prefixes, so several candidates are compared per byte.
+     */
+    private static final String[] COLLIDING = {"ABCD", "AB", "ABD", "BCA", "B", "CAB"};
+
+    private static final int PACKET_SIZE = 64;
+
+    @Test
+    public void statusReports() {
+        final StatusMatcher matcher = matcher(STATUS);
+        assertEquals(0, match(matcher, "UNINITIALIZED"));
+        assertEquals(1, match(matcher, "INITIALIZED"));
+        assertEquals(2, match(matcher, "UNLOCKED"));
+        assertEquals(3, match(matcher, "LOCKED"));
+        assertEquals(StatusMatcher.NO_MATCH, match(matcher, ""));
+        // precedence, not position, decides
+        assertEquals(1, match(matcher, "LOCKED INITIALIZED"));
+        assertEquals(0, match(matcher, "INITIALIZED UNINITIALIZED"));
+    }
+
+    @Test
+    public void randomStatusPackets() {
+        differential(STATUS, new Random(4), 200000);
+    }
+
+    @Test
+    public void randomCollidingTokens() {
+        differential(COLLIDING, new Random(5), 200000);
+    }
+
+    /**
+     * A token cut off by the end of the packet, or of the range scanned, is not found, and one
+     * ending exactly there is.
+     */
+    @Test
+    public void tokensStraddlingPacketEnd() {
+        final StatusMatcher matcher = matcher(STATUS);
+        final byte[] token = "UNLOCKED".getBytes(StandardCharsets.US_ASCII);
+        for (int cut = 1; cut <= token.length; cut++) {
+            final byte[] packet = new byte[PACKET_SIZE];
+            System.arraycopy(token, 0, packet, PACKET_SIZE - cut, cut);
+            assertEquals("cut " + cut, reference(STATUS, packet, 0, PACKET_SIZE),
+                    matcher.match(packet, 0, PACKET_SIZE));
+        }
+
+        final byte[] packet = new byte[PACKET_SIZE];
+        System.arraycopy(token, 0, packet, 20, token.length);
+        for (int len = 0; len <= PACKET_SIZE - 20; len++) {
+            assertEquals("len " + len, reference(STATUS, packet, 20, len),
+                    matcher.match(packet, 20, len));
+            assertEquals("len " + len, reference(STATUS, packet, 0, 20 + len),
+                    matcher.match(packet, 0, 20 + len));
+        }
+    }
+
+    /**
+     * Compare the matcher with the reference on random packets and ranges. Packets are built
+     * from token fragments, token letters and random bytes, so most hold a whole or partial
+     * token, and fragments often run into each other or off the end.
+     */
+    private static void differential(final String[] tokens, final Random random,
+                                     final int packets) {
+        final StatusMatcher matcher = matcher(tokens);
+        final byte[] packet = new byte[PACKET_SIZE];
+        for (int n = 0; n < packets; n++) {
+            fill(packet, tokens, random);
+            final int off = random.nextInt(4) == 0 ? random.nextInt(PACKET_SIZE) : 0;
+            final int len = off == 0 && random.nextBoolean() ? PACKET_SIZE
+                    : random.nextInt(PACKET_SIZE - off + 1);
+            assertEquals(Arrays.toString(packet) + " [" + off + ", " + len + ")",
+                    reference(tokens, packet, off, len), matcher.match(packet, off, len));
+        }
+    }
+
+    private static void fill(final byte[] packet, final String[] tokens, final Random random) {
+        int i = 0;
+        while (i < packet.length) {
+            switch (random.nextInt(4)) {
+                case 0: {
+                    final byte[] t = tokens[random.nextInt(tokens.length)]
+                            .getBytes(StandardCharsets.US_ASCII);
+                    final int from = random.nextInt(3) == 0 ? random.nextInt(t.length) : 0;
+                    final int to = random.nextInt(3) == 0 ? from + random.nextInt(t.length - from)
+                            : t.length;
+                    for (int j = from; j < to && i < packet.length; j++) {
+                        packet[i++] = t[j];
+                    }
+                    break;
+                }
+                case 1: {
+                    final String t = tokens[random.nextInt(tokens.length)];
+                    packet[i++] = (byte) t.charAt(random.nextInt(t.length()));
+                    break;
+                }
+                case 2:
+                    packet[i++] = 0;
+                    break;
+                default:
+                    packet[i++] = (byte) random.nextInt(256);
+            }
+        }
+    }
+
+    private static StatusMatcher matcher(final String[] tokens) {
+        final StatusMatcher matcher = new StatusMatcher();
+        for (int t = 0; t < tokens.length; t++) {
+            matcher.addToken(tokens[t], t);
+        }
+        return matcher;
+    }
+
+    private static int match(final StatusMatcher matcher, final String text) {
+        final byte[] packet = Arrays.copyOf(text.getBytes(StandardCharsets.US_ASCII),
+                PACKET_SIZE);
+        final int found = matcher.match(packet, 0, packet.length);
+        assertEquals(reference(STATUS, packet, 0, packet.length), found);
+        return found;
+    }
+
+    /**
+     * What the packet parser did before: decode the bytes and take the first token, in
+     * precedence order, that the text contains.
+     */
+    private static int reference(final String[] tokens, final byte[] data, final int off,
+                                 final int len) {
+        final String text = new String(data, off, len, StandardCharsets.UTF_8);
+        for (int t = 0; t < tokens.length; t++) {
+            if (text.contains(tokens[t])) {
+                return t;
+            }
+        }
+        return StatusMatcher.NO_MATCH;
+    }
+}
@@ -0,0 +1,162 @@
+package to.crp.android.oktimeset;
+
+import android.support.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Precision syncs, see {@link TimeSync}, on emulated keys.
+ */
+public class TimeSyncTest {
+
+    private OKIoLoop ioLoop;
+
+    @Before
+    public void setUp() {
+        ioLoop = new OKIoLoop(OKIoLoop.DEFAULT_WORKERS);
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(ioLoop.shutdown(OnlyKey.STOP_TIMEOUT_MS));
+    }
+
+    @Test
+    public void plansWriteAheadOfBoundary() {
+        final long latency = TimeUnit.MILLISECONDS.toNanos(4);
+        final TimeSync sync = TimeSync.plan(1000500, 0, latency);
+        assertEquals(1001, sync.getSecond());
+
+        // 5 ms before the boundary is too close, the next second is planned
+        assertEquals(1002, TimeSync.plan(1000995, 0, latency).getSecond());
+
+        // queued on plan, completed one latency later: the middle of the transfer is on time
+        final long boundary = TimeUnit.MILLISECONDS.toNanos(500);
+        final TimeSync.Result result = sync.grade(boundary - latency / 2, boundary + latency / 2);
+        assertEquals(0, result.getResidualNanos());
+        assertEquals(latency / 2, result.getUncertaintyNanos());
+        assertEquals(0, result.getLateNanos());
+    }
+
+    /**
+     * An error writing the timed frame, met on the sync timer, fails the session on the thread
+     * servicing it.
+     */
+    @Test
+    public void writeErrorFailsSessionOnServicingThread()
+            throws IOException, InterruptedException {
+        final FailingWrites device = new FailingWrites();
+        final OnlyKey key = new OnlyKey(device);
+        final Failed failed = new Failed();
+        key.addListener(failed);
+        ioLoop.register(key);
+
+        key.setTime();
+        final long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (key.getOutLatencyNanos() < 0) {
+            assertTrue("Time never set", System.nanoTime() - giveUp < 0);
+            Thread.sleep(1);
+        }
+
+        device.failWrites = true;
+        key.syncTime();
+        assertTrue("No error", failed.error.await(3, TimeUnit.SECONDS));
+        assertTrue(failed.thread, failed.thread.startsWith("onlyKeyIo-"));
+        assertTrue(key.isClosed());
+        assertTrue(KeyState.failed(key.getState()));
+    }
+
+    /**
+     * An emulated key whose OUT requests can be made to fail to queue.
+     */
+    private static final class FailingWrites implements HidTransport {
+
+        private final EmulatedOnlyKey device =
+                new EmulatedOnlyKey(TimeUnit.MILLISECONDS.toNanos(2));
+
+        private volatile boolean failWrites = false;
+
+        @Override
+        public int getInPacketSize() {
+            return device.getInPacketSize();
+        }
+
+        @Override
+        public int getOutPacketSize() {
+            return device.getOutPacketSize();
+        }
+
+        @Override
+        public Request newRequest(final boolean in) throws IOException {
+            final Request r = device.newRequest(in);
+            return in ? r : new Request() {
+                @Override
+                public boolean queue(final ByteBuffer buffer, final int length) {
+                    return !failWrites && r.queue(buffer, length);
+                }
+
+                @Override
+                public boolean cancel() {
+                    return r.cancel();
+                }
+
+                @Override
+                public void close() {
+                    r.close();
+                }
+
+                @Override
+                @Nullable
+                public Object getClientData() {
+                    return r.getClientData();
+                }
+
+                @Override
+                public void setClientData(@Nullable final Object data) {
+                    r.setClientData(data);
+                }
+            };
+        }
+
+        @Override
+        @Nullable
+        public Request await(final long timeoutMs) throws IOException {
+            return device.await(timeoutMs);
+        }
+
+        @Override
+        public void setCompletionSignal(@Nullable final Runnable signal) {
+            device.setCompletionSignal(signal);
+        }
+
+        @Override
+        public void close() {
+            device.close();
+        }
+    }
+
+    /**
+     * Notes the thread the error is told on.
+     */
+    private static final class Failed extends RecordingListener {
+
+        private final CountDownLatch error = new CountDownLatch(1);
+        private volatile String thread = "";
+
+        @Override
+        public void okError(final OKEvent event) {
+            thread = Thread.currentThread().getName();
+            error.countDown();
+        }
+    }
+}
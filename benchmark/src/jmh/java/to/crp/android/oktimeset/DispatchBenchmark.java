@@ -0,0 +1,72 @@
+package to.crp.android.oktimeset;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event dispatch through {@link OnlyKey#notifyListeners(OKEvent)}, to listeners of every type
+ * and to one interested listener among listeners of other types, and {@link OKEvent}
+ * construction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int listeners;
+
+    private OnlyKey key;
+    private OKEvent event;
+
+    /**
+     * A key whose listeners all but one only take messages.
+     */
+    private OKEvent filteredEvent;
+
+    @Setup
+    public void setup(final Blackhole bh) {
+        key = Keys.newKey();
+        for (int i = 0; i < listeners; i++) {
+            key.addListener(new Keys.SinkListener(bh));
+        }
+        event = new OKEvent(key, OKEvent.OKEType.SET_LOCKED, false);
+
+        final OnlyKey filtered = Keys.newKey();
+        filtered.addListener(new Keys.SinkListener(bh), EnumSet.of(OKEvent.OKEType.SET_LOCKED));
+        for (int i = 1; i < listeners; i++) {
+            filtered.addListener(new Keys.SinkListener(bh), EnumSet.of(OKEvent.OKEType.MSG));
+        }
+        filteredEvent = new OKEvent(filtered, OKEvent.OKEType.SET_LOCKED, false);
+    }
+
+    @Benchmark
+    public void notifyListeners() {
+        key.notifyListeners(event);
+    }
+
+    @Benchmark
+    public void notifyFiltered() {
+        filteredEvent.getKey().notifyListeners(filteredEvent);
+    }
+
+    @Benchmark
+    public OKEvent newLockedEvent() {
+        return new OKEvent(key, OKEvent.OKEType.SET_LOCKED, true);
+    }
+
+    @Benchmark
+    public OKEvent newTimeEvent() {
+        return new OKEvent(key, OKEvent.OKEType.SET_TIME);
+    }
+}
@@ -0,0 +1,61 @@
+package to.crp.android.oktimeset;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reader and writer paths of an {@link OnlyKey} session against an {@link EmulatedOnlyKey}
+ * reporting as fast as it is polled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EmulatorBenchmark {
+
+    private EmulatedOnlyKey device;
+    private OnlyKey key;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        device = new EmulatedOnlyKey(0);
+        key = new OnlyKey(device);
+        key.open();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        key.close();
+    }
+
+    /**
+     * One status report received, copied out, re-queued and parsed.
+     */
+    @Benchmark
+    public boolean receive() throws IOException {
+        return key.poll(0);
+    }
+
+    /**
+     * One set time message written and its completion reaped, with reports flowing alongside.
+     */
+    @Benchmark
+    public long setTime() throws IOException {
+        final long sent = device.getTimeSetCount();
+        key.setTime();
+        while (device.getTimeSetCount() == sent) {
+            key.poll(0);
+        }
+        key.poll(0);
+        return sent;
+    }
+}
@@ -0,0 +1,119 @@
+package to.crp.android.oktimeset;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keys per minute through a {@link ProvisioningPipeline}: a hub of {@link #FLEET} unlocked
+ * {@link EmulatedOnlyKey}s is attached at once, and one operation is one key taken from attach
+ * to a verified precision sync.
+ * <p>
+ * Permission is granted at once and the keys report every millisecond, so what is measured is
+ * the pipeline and the sync itself; {@code setTime} is the limit of the stage that bounds it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+public class FleetBenchmark {
+
+    private static final int FLEET = 32;
+
+    @Param({"1", "8", "32"})
+    public int setTime;
+
+    private OKIoLoop ioLoop;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ioLoop = new OKIoLoop(OKIoLoop.DEFAULT_WORKERS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ioLoop.shutdown(OnlyKey.STOP_TIMEOUT_MS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FLEET)
+    public int provision() throws InterruptedException {
+        final Hub hub = new Hub();
+        final ProvisioningPipeline<Integer> pipeline =
+                new ProvisioningPipeline<>(hub, ioLoop, 1, 2, FLEET, setTime, 4);
+        hub.pipeline = pipeline;
+        for (int i = 0; i < FLEET; i++) {
+            hub.devices[i].setLocked(false);
+            pipeline.add(i);
+        }
+        if (!hub.done.await(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Fleet not done!");
+        }
+        pipeline.close();
+        if (hub.set.get() + hub.imprecise.get() != FLEET) {
+            throw new IllegalStateException("Only " + hub.set.get() + " of " + FLEET + " set!");
+        }
+        return hub.imprecise.get();
+    }
+
+    /**
+     * Emulated devices by id. Grants every permission.
+     */
+    private static final class Hub implements ProvisioningPipeline.Host<Integer> {
+
+        private final EmulatedOnlyKey[] devices = new EmulatedOnlyKey[FLEET];
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicInteger set = new AtomicInteger();
+        private final AtomicInteger imprecise = new AtomicInteger();
+
+        private ProvisioningPipeline<Integer> pipeline;
+
+        private Hub() {
+            for (int i = 0; i < FLEET; i++) {
+                devices[i] = new EmulatedOnlyKey(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+
+        @Override
+        public int getId(final Integer device) {
+            return device;
+        }
+
+        @Override
+        public void requestPermission(final Integer device) {
+            pipeline.permitted(device, true);
+        }
+
+        @Override
+        public OnlyKey open(final Integer device) throws IOException {
+            return new OnlyKey(devices[device]);
+        }
+
+        @Override
+        public void finished(final Integer device,
+                             final ProvisioningPipeline.Outcome outcome) {
+            if (outcome == ProvisioningPipeline.Outcome.SET) {
+                set.incrementAndGet();
+            } else if (outcome == ProvisioningPipeline.Outcome.IMPRECISE) {
+                imprecise.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void idle() {
+            done.countDown();
+        }
+    }
+}
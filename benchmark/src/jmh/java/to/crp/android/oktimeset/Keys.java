@@ -0,0 +1,76 @@
+package to.crp.android.oktimeset;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers for benchmarking {@link OnlyKey} without a device.
+ */
+final class Keys {
+
+    /**
+     * Size of an OnlyKey HID report.
+     */
+    static final int PACKET_SIZE = 64;
+
+    private Keys() {
+    }
+
+    /**
+     * @return A key on an emulated device that is not opened. Only the protocol code may be
+     * exercised on it.
+     */
+    static OnlyKey newKey() {
+        return new OnlyKey(new EmulatedOnlyKey(0));
+    }
+
+    /**
+     * @param status The status token to report, or "NONE".
+     * @return A zero padded status report.
+     */
+    static byte[] statusPacket(final String status) {
+        final byte[] packet = new byte[PACKET_SIZE];
+        if (!"NONE".equals(status)) {
+            final byte[] text = ("OnlyKey v0.2-beta.5 " + status).getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(text, 0, packet, 0, text.length);
+        }
+        return packet;
+    }
+
+    /**
+     * Listener handing every event to a {@link Blackhole}.
+     */
+    static final class SinkListener implements OKListener {
+        private final Blackhole bh;
+
+        SinkListener(final Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public void okError(final OKEvent event) {
+            bh.consume(event);
+        }
+
+        @Override
+        public void okMessage(final OKEvent event) {
+            bh.consume(event);
+        }
+
+        @Override
+        public void okSetInitialized(final OKEvent event) {
+            bh.consume(event);
+        }
+
+        @Override
+        public void okSetTime(final OKEvent event) {
+            bh.consume(event);
+        }
+
+        @Override
+        public void okSetLocked(final OKEvent event) {
+            bh.consume(event);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package to.crp.android.oktimeset;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DeviceRegistry} lookups while devices are attached and detached as fast as one thread
+ * can, over the ids of two full USB buses.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RegistryBenchmark {
+
+    private static final int BUSES = 2;
+    private static final int ADDRESSES = 127;
+
+    private final int[] ids = new int[BUSES * ADDRESSES];
+
+    private DeviceRegistry<Device> registry;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        for (int bus = 0; bus < BUSES; bus++) {
+            for (int address = 0; address < ADDRESSES; address++) {
+                // as UsbDevice.getDeviceId() makes them
+                ids[bus * ADDRESSES + address] = (bus + 1) * 1000 + address + 1;
+            }
+        }
+        registry = new DeviceRegistry<>(1024);
+        // half attached to begin with
+        for (int i = 0; i < ids.length; i += 2) {
+            registry.putIfAbsent(new Device(ids[i]));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next = 0;
+
+        int next(final int[] ids) {
+            next = (next + 7) % ids.length;
+            return ids[next];
+        }
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    public Device lookup(final Cursor cursor) {
+        return registry.get(cursor.next(ids));
+    }
+
+    /**
+     * Detaches the device if it is attached, else attaches it.
+     */
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public boolean plug(final Cursor cursor) {
+        final int id = cursor.next(ids);
+        final Device d = registry.get(id);
+        if (d != null && d.getState() != DeviceRegistry.CLOSING) {
+            d.close();
+            return registry.remove(d);
+        }
+        final Device attached = new Device(id);
+        return registry.putIfAbsent(attached) == attached && attached.activate();
+    }
+
+    static final class Device extends DeviceRegistry.Entry {
+        Device(final int id) {
+            super(id);
+        }
+    }
+}
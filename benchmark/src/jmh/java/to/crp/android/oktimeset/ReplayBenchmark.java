@@ -0,0 +1,76 @@
+package to.crp.android.oktimeset;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and dispatch of a whole capture, replayed flat out; one operation is one pass over
+ * the capture.
+ * <p>
+ * Replays a field capture given as the {@code capture} parameter, or else one recorded here from
+ * an {@link EmulatedOnlyKey} that locks and unlocks every {@link #TOGGLE_EVERY} reports, so
+ * there are state changes to dispatch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReplayBenchmark {
+
+    private static final int PACKETS = 4096;
+    private static final int TOGGLE_EVERY = 64;
+
+    @Param({""})
+    public String capture;
+
+    private PacketReplay replay;
+    private OnlyKey key;
+
+    @Setup(Level.Trial)
+    public void setup(final Blackhole bh) throws IOException {
+        final File file;
+        if (capture.isEmpty()) {
+            file = File.createTempFile("onlykey", ".cap");
+            file.deleteOnExit();
+            record(file);
+        } else {
+            file = new File(capture);
+        }
+        replay = PacketReplay.load(file);
+
+        key = Keys.newKey();
+        key.addListener(new Keys.SinkListener(bh));
+    }
+
+    private static void record(final File file) throws IOException {
+        final PacketCapture out = PacketCapture.open(file, PACKETS);
+        final EmulatedOnlyKey device = new EmulatedOnlyKey(0);
+        final OnlyKey recorded = new OnlyKey(new RecordingTransport(device, out, 1));
+        recorded.open();
+        try {
+            while (device.getReportCount() < PACKETS) {
+                recorded.poll(0);
+                device.setLocked(device.getReportCount() / TOGGLE_EVERY % 2 == 0);
+            }
+        } finally {
+            recorded.close();
+            out.close();
+        }
+    }
+
+    @Benchmark
+    public int replay() throws IOException {
+        return replay.replay(key, PacketReplay.ALL_DEVICES, false);
+    }
+}
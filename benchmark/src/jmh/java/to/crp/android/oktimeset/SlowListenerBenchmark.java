@@ -0,0 +1,113 @@
+package to.crp.android.oktimeset;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost to the thread servicing a key of notifying four listeners that each take
+ * {@link #WORK_TOKENS} of {@link Blackhole#consumeCPU(long)} per event, called directly or
+ * queued on an executor with {@link OnlyKey#addListener(OKListener, java.util.concurrent.Executor,
+ * ListenerQueue.Overflow)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SlowListenerBenchmark {
+
+    private static final int LISTENERS = 4;
+
+    /**
+     * Roughly 10 microseconds.
+     */
+    private static final long WORK_TOKENS = 5000;
+
+    @Param({"direct", "COALESCE", "DROP"})
+    public String delivery;
+
+    private OnlyKey key;
+    private OKEvent locked;
+    private OKEvent unlocked;
+    private ExecutorService executor;
+    private boolean flip = false;
+
+    @Setup
+    public void setup(final Blackhole bh) {
+        key = Keys.newKey();
+        executor = Executors.newSingleThreadExecutor();
+        for (int i = 0; i < LISTENERS; i++) {
+            final OKListener slow = new SlowListener(bh);
+            if (delivery.equals("direct")) {
+                key.addListener(slow);
+            } else {
+                key.addListener(slow, executor, ListenerQueue.Overflow.valueOf(delivery));
+            }
+        }
+        locked = new OKEvent(key, OKEvent.OKEType.SET_LOCKED, true);
+        unlocked = new OKEvent(key, OKEvent.OKEType.SET_LOCKED, false);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void notifyListeners() {
+        flip = !flip;
+        key.notifyListeners(flip ? locked : unlocked);
+    }
+
+    /**
+     * Listener burning {@link #WORK_TOKENS} on each event.
+     */
+    private static final class SlowListener implements OKListener {
+        private final Blackhole bh;
+
+        SlowListener(final Blackhole bh) {
+            this.bh = bh;
+        }
+
+        private void work(final OKEvent event) {
+            Blackhole.consumeCPU(WORK_TOKENS);
+            bh.consume(event);
+        }
+
+        @Override
+        public void okError(final OKEvent event) {
+            work(event);
+        }
+
+        @Override
+        public void okMessage(final OKEvent event) {
+            work(event);
+        }
+
+        @Override
+        public void okSetInitialized(final OKEvent event) {
+            work(event);
+        }
+
+        @Override
+        public void okSetTime(final OKEvent event) {
+            work(event);
+        }
+
+        @Override
+        public void okSetLocked(final OKEvent event) {
+            work(event);
+        }
+    }
+}
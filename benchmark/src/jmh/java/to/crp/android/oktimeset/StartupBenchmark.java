@@ -0,0 +1,95 @@
+package to.crp.android.oktimeset;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Attach to time set as {@link OKSyncService} handles it, less the USB stack: a new session on
+ * an unlocked {@link EmulatedOnlyKey} is registered with a running {@link OKIoLoop}, sets the
+ * time on its first UNLOCKED report and is stopped once the time is set.
+ * <p>
+ * This is the floor under the headless path, and only that: an activity cannot be launched off a
+ * device, so there is no case with one to compare it with.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StartupBenchmark {
+
+    private OKIoLoop ioLoop;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ioLoop = new OKIoLoop(OKIoLoop.DEFAULT_WORKERS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ioLoop.shutdown(OnlyKey.STOP_TIMEOUT_MS);
+    }
+
+    @Benchmark
+    public long attachToTimeSet() throws IOException, InterruptedException {
+        final EmulatedOnlyKey device = new EmulatedOnlyKey(0);
+        device.setLocked(false);
+        final OnlyKey key = new OnlyKey(device);
+        final SetTimeOnUnlock listener = new SetTimeOnUnlock();
+        key.addListener(listener);
+
+        ioLoop.register(key);
+        if (!listener.timeSet.await(1, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Time not set!");
+        }
+        key.stop(OnlyKey.STOP_TIMEOUT_MS);
+        return device.getTimeSetCount();
+    }
+
+    /**
+     * Sets the time on the first unlock, like the service does, and counts down when it is set.
+     */
+    private static final class SetTimeOnUnlock implements OKListener {
+
+        private final CountDownLatch timeSet = new CountDownLatch(1);
+
+        @Override
+        public void okError(final OKEvent event) {
+            throw new IllegalStateException(event.getException());
+        }
+
+        @Override
+        public void okMessage(final OKEvent event) {
+        }
+
+        @Override
+        public void okSetInitialized(final OKEvent event) {
+        }
+
+        @Override
+        public void okSetTime(final OKEvent event) {
+            timeSet.countDown();
+        }
+
+        @Override
+        public void okSetLocked(final OKEvent event) {
+            // not syncTime(), whose wait for the second boundary would swamp the rest
+            if (!event.getBoolVal()) {
+                try {
+                    event.getKey().setTime();
+                } catch (IOException ioe) {
+                    throw new IllegalStateException(ioe);
+                }
+            }
+        }
+    }
+}
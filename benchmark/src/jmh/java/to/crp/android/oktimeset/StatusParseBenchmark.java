@@ -0,0 +1,56 @@
+package to.crp.android.oktimeset;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Status report parsing in {@link OnlyKey#processReceived(byte[])}, against the old decode and
+ * {@code contains()} approach as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StatusParseBenchmark {
+
+    @Param({"UNINITIALIZED", "INITIALIZED", "UNLOCKED", "LOCKED", "NONE"})
+    public String status;
+
+    private OnlyKey key;
+    private byte[] packet;
+
+    @Setup
+    public void setup() {
+        key = Keys.newKey();
+        packet = Keys.statusPacket(status);
+    }
+
+    @Benchmark
+    public void processReceived() {
+        key.processReceived(packet);
+    }
+
+    @Benchmark
+    public int stringContains() {
+        final String inString = new String(packet, 0, packet.length, StandardCharsets.UTF_8);
+
+        if (inString.contains("UNINITIALIZED")) {
+            return 0;
+        } else if (inString.contains("INITIALIZED")) {
+            return 1;
+        } else if (inString.contains("UNLOCKED")) {
+            return 2;
+        } else if (inString.contains("LOCKED")) {
+            return 3;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,30 @@
+package to.crp.android.oktimeset;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of the set time message: patching the time into the prepared frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimeMessageBenchmark {
+
+    private final ByteBuffer frame = OnlyKey.newTimeFrame(Keys.PACKET_SIZE);
+
+    private final OKClock clock = OKClock.SYSTEM;
+
+    @Benchmark
+    public ByteBuffer putTime() {
+        OnlyKey.putTime(frame, clock.currentTimeMillis() / 1000);
+        return frame;
+    }
+}
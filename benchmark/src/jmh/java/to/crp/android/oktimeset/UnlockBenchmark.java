@@ -0,0 +1,152 @@
+package to.crp.android.oktimeset;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The path from an UNLOCKED report to the set time frame being written, as taken by a listener
+ * that sets the time on unlock, against an {@link EmulatedOnlyKey} that takes writes at once.
+ * <p>
+ * Each operation also parses a LOCKED report first, so every UNLOCKED report is a state change,
+ * and reaps the write's completion after, so the next write starts straight away.
+ * <p>
+ * {@link #unlockToWriteBuiltFrame()} is the baseline: the listener builds the time and the frame
+ * in new arrays on each unlock and sends them as a new message, copied into the OUT buffer, as
+ * {@code setTime()} did before sessions had a frame template.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UnlockBenchmark {
+
+    private EmulatedOnlyKey device;
+    private OnlyKey key;
+
+    private EmulatedOnlyKey builtDevice;
+    private OnlyKey builtKey;
+
+    private final byte[] locked = Keys.statusPacket("LOCKED");
+    private final byte[] unlocked = Keys.statusPacket("UNLOCKED");
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // reports would only get in the way
+        device = new EmulatedOnlyKey(TimeUnit.HOURS.toNanos(1));
+        key = new OnlyKey(device);
+        key.addListener(new SetTimeOnUnlock());
+        key.open();
+
+        builtDevice = new EmulatedOnlyKey(TimeUnit.HOURS.toNanos(1));
+        builtKey = new OnlyKey(builtDevice);
+        builtKey.addListener(new SendBuiltFrameOnUnlock());
+        builtKey.open();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        key.close();
+        builtKey.close();
+    }
+
+    @Benchmark
+    public long unlockToWrite() throws IOException {
+        key.processReceived(locked);
+        key.processReceived(unlocked);
+        key.poll(0);
+        return device.getTimeSetCount();
+    }
+
+    @Benchmark
+    public long unlockToWriteBuiltFrame() throws IOException {
+        builtKey.processReceived(locked);
+        builtKey.processReceived(unlocked);
+        builtKey.poll(0);
+        return builtDevice.getTimeSetCount();
+    }
+
+    /**
+     * Sets the time when the key is unlocked, like the app does.
+     */
+    private static class SetTimeOnUnlock implements OKListener {
+
+        @Override
+        public void okError(final OKEvent event) {
+            throw new IllegalStateException(event.getException());
+        }
+
+        @Override
+        public void okMessage(final OKEvent event) {
+        }
+
+        @Override
+        public void okSetInitialized(final OKEvent event) {
+        }
+
+        @Override
+        public void okSetTime(final OKEvent event) {
+        }
+
+        @Override
+        public void okSetLocked(final OKEvent event) {
+            if (!event.getBoolVal()) {
+                try {
+                    event.getKey().setTime();
+                } catch (IOException ioe) {
+                    throw new IllegalStateException(ioe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the time when the key is unlocked the way {@code setTime()} used to, building the
+     * frame per call.
+     */
+    private static final class SendBuiltFrameOnUnlock extends SetTimeOnUnlock {
+
+        @Override
+        public void okSetLocked(final OKEvent event) {
+            if (!event.getBoolVal()) {
+                try {
+                    event.getKey().sendMessage(frame(time()), null);
+                } catch (IOException ioe) {
+                    throw new IllegalStateException(ioe);
+                }
+            }
+        }
+
+        /**
+         * @return The current time, 4 bytes big endian.
+         */
+        private static byte[] time() {
+            final int unixTime = (int) (System.currentTimeMillis() / 1000);
+            return new byte[]{
+                    (byte) (unixTime >> 24),
+                    (byte) (unixTime >> 16),
+                    (byte) (unixTime >> 8),
+                    (byte) unixTime};
+        }
+
+        /**
+         * @param time The time, 4 bytes big endian.
+         * @return A set time message carrying the time.
+         */
+        private static byte[] frame(final byte[] time) {
+            final byte[] toSend = new byte[9];
+            System.arraycopy(OnlyKey.header, 0, toSend, 0, OnlyKey.header.length);
+            toSend[4] = OnlyKey.MSG_SET_TIME;
+            System.arraycopy(time, 0, toSend, 5, time.length);
+            return toSend;
+        }
+    }
+}